@@ -1,15 +1,19 @@
-import database.DatabaseManager;
+import database.Database;
 import memory.Record;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class CommandProcessor {
-    private final DatabaseManager manager;
+    private static final int DEFAULT_COMPACTION_BLOCKS = 8;
 
-    public CommandProcessor(DatabaseManager manager) {
+    private final Database manager;
+
+    public CommandProcessor(Database manager) {
         this.manager = manager;
     }
 
@@ -20,8 +24,7 @@ public class CommandProcessor {
             String command = scanner.nextLine().trim();
 
             if (command.equalsIgnoreCase("exit")) {
-                Main.clearDirectory(manager.getDataDirectory());
-                Main.clearDirectory(manager.getBTreeDirectory());
+                manager.close();
                 System.out.println("Exiting program. Goodbye!");
                 break;
             } else {
@@ -48,6 +51,47 @@ public class CommandProcessor {
         }
     }
 
+    // Prints the records in the order the keys were given
+    public void handleSearchManyCommand(String command) {
+        String[] parts = command.split("\\s+");
+        if (parts.length < 2) {
+            System.out.println("Invalid command format. Use: searchMany k1 k2 ...");
+            return;
+        }
+
+        try {
+            int[] keys = new int[parts.length - 1];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Integer.parseInt(parts[i + 1]);
+            }
+
+            Record[] records = manager.searchMany(keys);
+            for (int i = 0; i < keys.length; i++) {
+                System.out.println((i + 1) + ". key " + keys[i] + ": " +
+                        (records[i] != null ? records[i] : "not found"));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number format. Use: searchMany k1 k2 ...");
+        }
+    }
+
+    public void handleRangeCommand(String command) {
+        String[] parts = command.split("\\s+");
+        if (parts.length != 3 && parts.length != 4) {
+            System.out.println("Invalid command format. Use: range lo hi [limit]");
+            return;
+        }
+
+        try {
+            int lo = Integer.parseInt(parts[1]);
+            int hi = Integer.parseInt(parts[2]);
+            int limit = parts.length == 4 ? Integer.parseInt(parts[3]) : 0;
+            manager.rangeSearch(lo, hi, limit);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number format. Use: range lo hi [limit]");
+        }
+    }
+
     public void handleInsertCommand(String command) {
         String[] parts = command.split("\\s+");
         if (parts.length != 5) {
@@ -66,6 +110,43 @@ public class CommandProcessor {
         }
     }
 
+    // The file holds one record per line, as r1 r2 r3 k
+    public void handleInsertBatchCommand(String command) {
+        String filePath = command.substring("insertBatch".length()).trim();
+        if (filePath.isEmpty()) {
+            System.out.println("Invalid command format. Use: insertBatch path");
+            return;
+        }
+
+        List<Record> records = new ArrayList<>();
+        int lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] values = line.split("\\s+");
+                if (values.length != 4) {
+                    System.out.println("Invalid record on line " + lineNumber + ". Use: r1 r2 r3 k");
+                    return;
+                }
+                records.add(new Record(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                        Integer.parseInt(values[2]), Integer.parseInt(values[3])));
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading records from file: " + e.getMessage());
+            return;
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number format on line " + lineNumber + ".");
+            return;
+        }
+
+        manager.insertBatch(records);
+    }
+
     public void handleUpdateCommand(String command) {
         String[] parts = command.split("\\s+");
         if (parts.length != 6) {
@@ -99,6 +180,20 @@ public class CommandProcessor {
         }
     }
 
+    public void handleCompactCommand(String command) {
+        String[] parts = command.split("\\s+");
+        if (parts.length > 2) {
+            System.out.println("Invalid command format. Use: compact [blocks]");
+            return;
+        }
+        try {
+            int blocks = parts.length == 2 ? Integer.parseInt(parts[1]) : DEFAULT_COMPACTION_BLOCKS;
+            manager.compact(blocks);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number format.");
+        }
+    }
+
     public void handlePrintDataCommand(String command) {
         String[] parts = command.split("\\s+");
         if (parts.length != 2) {
@@ -127,10 +222,19 @@ public class CommandProcessor {
         }
     }
 
-    public void handleCommand(DatabaseManager manager, String command) {
-        if (command.startsWith("search")) {
+    public void handleCommand(Database manager, String command) {
+        if (command.startsWith("searchMany")) {
+            handleSearchManyCommand(command);
+        }
+        else if (command.startsWith("search")) {
             handleSearchCommand(command);
         }
+        else if (command.startsWith("range")) {
+            handleRangeCommand(command);
+        }
+        else if (command.startsWith("insertBatch")) {
+            handleInsertBatchCommand(command);
+        }
         else if (command.startsWith("insert")) {
             handleInsertCommand(command);
         }
@@ -140,6 +244,9 @@ public class CommandProcessor {
         else if (command.startsWith("delete")) {
             handleDeleteCommand(command);
         }
+        else if (command.startsWith("compact")) {
+            handleCompactCommand(command);
+        }
         else if (command.startsWith("printData")) {
             handlePrintDataCommand(command);
         }
@@ -161,9 +268,13 @@ public class CommandProcessor {
     public void displayHelp() {
         System.out.println("\nAvailable commands:");
         System.out.println("  search k                  - Search for a record of a key k.");
+        System.out.println("  searchMany k1 k2 ...      - Search for the records of several keys at once.");
+        System.out.println("  range lo hi [limit]       - Print records with keys from lo to hi in key order.");
         System.out.println("  insert r1 r2 r3 k         - Insert a record with values r1, r2, r3 and key k.");
+        System.out.println("  insertBatch path          - Insert the records of a file, one r1 r2 r3 k per line.");
         System.out.println("  update k r1 r2 r3 nk      - Update the record of a key k to values r1, r2, r3 and new key nk.");
         System.out.println("  delete k                  - Delete record of a key k.");
+        System.out.println("  compact [blocks]          - Move the records of up to blocks (default 8) blocks at the end of the data into free slots.");
         System.out.println("  printData num             - Print block of data with number num.");
         System.out.println("  printBTree                - Print the B-Tree structure.");
         System.out.println("  fileCommands path         - Execute commands from a file of a given path.");
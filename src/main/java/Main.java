@@ -1,23 +1,39 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 import data.*;
+import database.Database;
+import database.DatabaseConfig;
 import database.DatabaseManager;
+import database.IndexType;
+import database.PartitionScheme;
+import database.PartitionedDatabase;
+import database.SlotPolicy;
 
 public class Main {
     public static void main(String[] args) {
         String dataDirectory = "src\\disk_files\\data_files";
         String BTreeDirectory = "src\\disk_files\\Btree_files";
-        clearDirectory(dataDirectory);
-        clearDirectory(BTreeDirectory);
+        if (Arrays.asList(args).contains("--fresh")) {
+            clearDirectory(dataDirectory);
+            clearDirectory(BTreeDirectory);
+        }
         UniqueKeyGenerator uniqueKeyGenerator = new UniqueKeyGenerator();
 
         try {
-            generateDataToFile(dataDirectory, uniqueKeyGenerator);
-
-            DatabaseManager manager = new DatabaseManager(dataDirectory, BTreeDirectory);
-            manager.loadRecordsAndSerializeIndex();
+            // An existing database is opened as it is; records are only generated for a new one
+            DatabaseConfig config = parseConfig(args);
+            Database manager = config.getPartitions() > 1 || PartitionedDatabase.exists(BTreeDirectory) ?
+                    new PartitionedDatabase(dataDirectory, BTreeDirectory, config) :
+                    new DatabaseManager(dataDirectory, BTreeDirectory, config);
+            if (manager.isNewStore()) {
+                // Only the generators' text blocks; the binary data file is open and is emptied by the load
+                clearDirectory(dataDirectory, ".txt");
+                generateDataToFile(dataDirectory, uniqueKeyGenerator);
+                manager.loadRecordsAndSerializeIndex();
+            }
 
             System.out.println("\nDatabase is ready. Enter commands (type 'help' for a list of commands):");
             CommandProcessor commandProcessor = new CommandProcessor(manager);
@@ -25,15 +41,72 @@ public class Main {
 
         } catch (IOException e) {
             System.out.println("An error occurred while generating data or creating the database.");
+        } catch (IllegalArgumentException e) {
+            // Also a NumberFormatException from an option value
+            System.out.println("Invalid configuration: " + e.getMessage());
         }
     }
 
+    public static DatabaseConfig parseConfig(String[] args) {
+        DatabaseConfig config = new DatabaseConfig();
+        for (String arg : args) {
+            if (arg.equals("--fresh")) {
+                continue; // Handled before the database is opened
+            } else if (arg.equals("--bplus")) {
+                config.setIndexType(IndexType.BPLUS_TREE);
+            } else if (arg.equals("--order=max")) {
+                config.setOrder(DatabaseConfig.ORDER_FROM_PAGE_SIZE);
+            } else if (arg.startsWith("--order=")) {
+                config.setOrder(Integer.parseInt(arg.substring("--order=".length())));
+            } else if (arg.equals("--mmap")) {
+                config.setMemoryMapped(true);
+            } else if (arg.startsWith("--frames=")) {
+                config.setBufferPoolFrames(Integer.parseInt(arg.substring("--frames=".length())));
+            } else if (arg.startsWith("--data-cache=")) {
+                config.setDataCacheBlocks(Integer.parseInt(arg.substring("--data-cache=".length())));
+            } else if (arg.startsWith("--fill=")) {
+                config.setFillFactor(Double.parseDouble(arg.substring("--fill=".length())));
+            } else if (arg.startsWith("--sort-buffers=")) {
+                config.setSortBufferBlocks(Integer.parseInt(arg.substring("--sort-buffers=".length())));
+            } else if (arg.startsWith("--group-commit=")) {
+                config.setGroupCommitWindowMillis(Integer.parseInt(arg.substring("--group-commit=".length())));
+            } else if (arg.startsWith("--checkpoint-blocks=")) {
+                config.setCheckpointLogBlocks(Integer.parseInt(arg.substring("--checkpoint-blocks=".length())));
+            } else if (arg.equals("--slot-policy=first-fit")) {
+                config.setSlotPolicy(SlotPolicy.FIRST_FIT);
+            } else if (arg.equals("--slot-policy=fill-current")) {
+                config.setSlotPolicy(SlotPolicy.FILL_CURRENT_BLOCK_FIRST);
+            } else if (arg.equals("--concurrent")) {
+                config.setConcurrent(true);
+            } else if (arg.startsWith("--partitions=")) {
+                config.setPartitions(Integer.parseInt(arg.substring("--partitions=".length())));
+            } else if (arg.equals("--partition-by=range")) {
+                config.setPartitionScheme(PartitionScheme.RANGE);
+            } else if (arg.equals("--partition-by=hash")) {
+                config.setPartitionScheme(PartitionScheme.HASH);
+            } else {
+                System.out.println("Unknown option ignored: " + arg);
+            }
+        }
+        return config;
+    }
+
     public static void clearDirectory(String directory) {
+        clearDirectory(directory, "");
+    }
+
+    public static void clearDirectory(String directory, String suffix) {
         File dir = new File(directory);
         File[] files = dir.listFiles();
         if (files != null) {
             for (File file : files) {
-                file.delete();
+                // Partitions keep their files in subdirectories
+                if (file.isDirectory()) {
+                    clearDirectory(file.getPath(), suffix);
+                }
+                if (file.getName().endsWith(suffix)) {
+                    file.delete();
+                }
             }
         }
     }
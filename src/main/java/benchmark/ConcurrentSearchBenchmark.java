@@ -0,0 +1,155 @@
+package benchmark;
+
+import data.RandomDataGenerator;
+import data.UniqueKeyGenerator;
+import database.DatabaseConfig;
+import database.DatabaseManager;
+import database.IndexType;
+import memory.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures lookup throughput of a database opened in concurrent mode for a growing number of reader
+// threads, alone and next to one thread that keeps inserting and deleting records.
+// Run with: java benchmark.ConcurrentSearchBenchmark [records] [seconds per run] [--bplus]
+public class ConcurrentSearchBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        boolean bPlusTree = args.length > 2 && args[2].equals("--bplus");
+
+        File directory = Files.createTempDirectory("concurrent-benchmark").toFile();
+        String dataDirectory = directory.getPath() + File.separator + "data";
+        String BTreeDirectory = directory.getPath() + File.separator + "btree";
+        new File(dataDirectory).mkdirs();
+        new File(BTreeDirectory).mkdirs();
+
+        DatabaseConfig config = new DatabaseConfig();
+        config.setConcurrent(true);
+        config.setOrder(DatabaseConfig.ORDER_FROM_PAGE_SIZE);
+        config.setIndexType(bPlusTree ? IndexType.BPLUS_TREE : IndexType.BTREE);
+
+        // The database reports every command; only the results of the benchmark are printed
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        new RandomDataGenerator().generateData(dataDirectory, records, new UniqueKeyGenerator());
+        int[] keys = readKeys(dataDirectory);
+        DatabaseManager manager = new DatabaseManager(dataDirectory, BTreeDirectory, config);
+        manager.loadRecordsAndSerializeIndex();
+
+        out.printf("%-8s %14s %8s %14s %8s%n", "threads", "lookups/s", "speedup", "with writer", "speedup");
+        double single = 0;
+        double singleWithWriter = 0;
+        for (int threads : THREADS) {
+            double alone = measure(manager, keys, threads, false, seconds);
+            double withWriter = measure(manager, keys, threads, true, seconds);
+            if (threads == 1) {
+                single = alone;
+                singleWithWriter = withWriter;
+            }
+            out.printf("%-8d %14.0f %7.2fx %14.0f %7.2fx%n", threads, alone, alone / single,
+                    withWriter, withWriter / singleWithWriter);
+        }
+
+        manager.close();
+        System.setOut(out);
+        deleteRecursively(directory);
+    }
+
+    // Lookups per second of all readers together, after a warm-up of a fifth of the run
+    private static double measure(DatabaseManager manager, int[] keys, int threads, boolean withWriter,
+                                  double seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean measuring = new AtomicBoolean(false);
+        AtomicLong lookups = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            workers.add(new Thread(() -> {
+                long count = 0;
+                while (running.get()) {
+                    manager.find(keys[random.nextInt(keys.length)]);
+                    if (measuring.get()) {
+                        count++;
+                    }
+                }
+                lookups.addAndGet(count);
+            }));
+        }
+        if (withWriter) {
+            // Inserts keys above the generated ones and deletes them again, so lookups keep finding their keys
+            workers.add(new Thread(() -> {
+                Random random = new Random(-1);
+                List<Integer> inserted = new ArrayList<>();
+                while (running.get()) {
+                    if (inserted.size() < 100 || random.nextBoolean()) {
+                        int key = Integer.MAX_VALUE - random.nextInt(1000000);
+                        manager.insert(new Record(1, 2, 3, key));
+                        inserted.add(key);
+                    } else {
+                        manager.delete(inserted.remove(random.nextInt(inserted.size())));
+                    }
+                }
+                for (int key : inserted) {
+                    manager.delete(key);
+                }
+            }));
+        }
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep((long) (seconds * 200));
+        measuring.set(true);
+        long start = System.nanoTime();
+        Thread.sleep((long) (seconds * 1000));
+        measuring.set(false);
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return lookups.get() / (elapsed / 1e9);
+    }
+
+    // The keys of the generated records, read from the text blocks before they are imported
+    private static int[] readKeys(String dataDirectory) throws IOException {
+        List<Integer> keys = new ArrayList<>();
+        for (int blockNumber = 0; ; blockNumber++) {
+            File block = new File(dataDirectory + "\\block_" + blockNumber + ".txt");
+            if (!block.exists()) {
+                break;
+            }
+            for (String line : Files.readAllLines(block.toPath())) {
+                String[] values = line.trim().split("\\s+");
+                if (values.length == 4 && !values[3].equals("0")) {
+                    keys.add(Integer.parseInt(values[3]));
+                }
+            }
+        }
+        return keys.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
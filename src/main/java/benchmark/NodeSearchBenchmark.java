@@ -0,0 +1,90 @@
+package benchmark;
+
+import database.KeySearch;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Measures the cost of finding a key's position inside one node for the node sizes that the
+// supported orders produce. Run with: java benchmark.NodeSearchBenchmark [rounds]
+public class NodeSearchBenchmark {
+    private static final int[] NODE_SIZES = {4, 8, 16, 24, 32, 40, 48, 64, 130, 196};
+    private static final int NODES = 1024;
+    private static final int PROBES = 1 << 16;
+
+    private interface Search {
+        int find(int[] keys, int size, int key);
+    }
+
+    private static int sink = 0;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        System.out.printf("%-6s %12s %12s %12s %12s%n", "keys", "early-exit", "branch-free", "binary", "chosen");
+        for (int size : NODE_SIZES) {
+            int[][] nodes = createNodes(size, new Random(size));
+            int[] probes = createProbes(size, new Random(~size));
+
+            double earlyExit = measure(nodes, size, probes, rounds, NodeSearchBenchmark::earlyExitLowerBound);
+            double branchFree = measure(nodes, size, probes, rounds, KeySearch::linearLowerBound);
+            double binary = measure(nodes, size, probes, rounds, KeySearch::binaryLowerBound);
+            double chosen = measure(nodes, size, probes, rounds, KeySearch::lowerBound);
+
+            System.out.printf("%-6d %9.2f ns %9.2f ns %9.2f ns %9.2f ns%n", size, earlyExit, branchFree, binary, chosen);
+        }
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    // The scan the nodes used before, kept for comparison
+    private static int earlyExitLowerBound(int[] keys, int size, int key) {
+        int i = 0;
+        while (i < size && key > keys[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    // Nanoseconds per lookup, best of all rounds after one warm-up round
+    private static double measure(int[][] nodes, int size, int[] probes, int rounds, Search search) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            int result = 0;
+            for (int i = 0; i < probes.length; i++) {
+                result += search.find(nodes[i & (NODES - 1)], size, probes[i]);
+            }
+            long elapsed = System.nanoTime() - start;
+            sink += result;
+
+            if (round > 0) {
+                best = Math.min(best, (double) elapsed / probes.length);
+            }
+        }
+        return best;
+    }
+
+    private static int[][] createNodes(int size, Random random) {
+        int[][] nodes = new int[NODES][];
+        for (int n = 0; n < NODES; n++) {
+            int[] keys = new int[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = random.nextInt(size * 16);
+            }
+            Arrays.sort(keys);
+            nodes[n] = keys;
+        }
+        return nodes;
+    }
+
+    private static int[] createProbes(int size, Random random) {
+        int[] probes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = random.nextInt(size * 16);
+        }
+        return probes;
+    }
+}
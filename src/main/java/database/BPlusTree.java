@@ -0,0 +1,421 @@
+package database;
+
+import memory.KeyLocation;
+import memory.RAM;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+// B+ tree variant: only leaves carry locations, internal nodes hold separators and child IDs,
+// and the leaves are linked in key order. A separator equals the smallest key of its right subtree.
+// Structural changes follow the path recorded on the way down, as in the B-Tree.
+public class BPlusTree extends BTree {
+
+    private static class PathEntry {
+        private final BTreeNode node;
+        private final int childIndex;
+
+        private PathEntry(BTreeNode node, int childIndex) {
+            this.node = node;
+            this.childIndex = childIndex;
+        }
+    }
+
+    public BPlusTree(int d, BufferPool bufferPool) {
+        super(d, bufferPool);
+    }
+
+    // Largest d for which both a full leaf (2d keys and locations) and a full internal node
+    // (2d keys and 2d + 1 children) fit in a page
+    public static int maxOrder(int pageSize) {
+        return (pageSize - RAM.NODE_HEADER_SIZE - Integer.BYTES) / (4 * Integer.BYTES);
+    }
+
+    @Override
+    public boolean insert(int key, int location) {
+        latchPathForWrite(key, true);
+        if (getRootID() == -1) {
+            BTreeNode root = new BTreeNode(this);
+            root.assignNodeID();
+            root.getKeys().add(key);
+            root.getLocations().add(location);
+            setRootID(root.getNodeID());
+            saveNodes(root);
+            return true;
+        }
+
+        Deque<PathEntry> path = new ArrayDeque<>();
+        BTreeNode leaf = findLeaf(key, path);
+
+        int i = leaf.lowerBound(key);
+        if (i < leaf.getKeys().size() && leaf.getKeys().get(i) == key) {
+            return false;
+        }
+        leaf.getKeys().add(i, key);
+        leaf.getLocations().add(i, location);
+        saveNodes(leaf);
+
+        if (leaf.getKeys().size() > 2 * getD()) {
+            splitLeaf(leaf, path);
+        }
+        return true;
+    }
+
+    @Override
+    public int delete(int key) {
+        latchPathForWrite(key, false);
+        if (getRootID() == -1) {
+            return -1;
+        }
+
+        Deque<PathEntry> path = new ArrayDeque<>();
+        BTreeNode leaf = findLeaf(key, path);
+
+        int i = leaf.lowerBound(key);
+        if (i == leaf.getKeys().size() || leaf.getKeys().get(i) != key) {
+            return -1;
+        }
+        leaf.getKeys().remove(i);
+        int location = leaf.getLocations().remove(i);
+        saveNodes(leaf);
+
+        // Separators equal to the deleted key may stay; they still bound their subtrees correctly
+        if (path.isEmpty()) {
+            if (leaf.getKeys().isEmpty()) {
+                removeNode(leaf);
+                setRootID(-1);
+            }
+        } else if (leaf.getKeys().size() < getD()) {
+            rebalance(leaf, path);
+        }
+        return location;
+    }
+
+    @Override
+    public Integer search(int key) {
+        if (getRootID() == -1) {
+            return -1;
+        }
+
+        BTreeNode leaf = findLeaf(key, null);
+        int i = leaf.lowerBound(key);
+        if (i < leaf.getKeys().size() && leaf.getKeys().get(i) == key) {
+            return leaf.getLocations().get(i);
+        }
+        return -1;
+    }
+
+    @Override
+    protected int locationIn(BTreeNode node, int key) {
+        return node.getChildrenIDs().isEmpty() ? super.locationIn(node, key) : -1;
+    }
+
+    // Keys equal to a separator live right of it
+    @Override
+    protected int childIndex(BTreeNode node, int key) {
+        return node.upperBound(key);
+    }
+
+    @Override
+    protected long firstKeyRightOf(int separator) {
+        return separator;
+    }
+
+    // Separators are left in place by deletes
+    @Override
+    protected boolean holdsDeletedKey(BTreeNode node, int key) {
+        return false;
+    }
+
+    // Locations are only stored in the leaves
+    @Override
+    protected boolean relocate(int key, int location) {
+        if (getRootID() == -1) {
+            return false;
+        }
+
+        BTreeNode leaf = findLeaf(key, null);
+        int i = leaf.lowerBound(key);
+        if (i == leaf.getKeys().size() || leaf.getKeys().get(i) != key) {
+            return false;
+        }
+        leaf.getLocations().set(i, location);
+        addModifiedNode(leaf);
+        return true;
+    }
+
+    @Override
+    public IndexCursor openCursor(int limit) {
+        return new BPlusTreeCursor(this, limit);
+    }
+
+    // Leaves get between d and 2d entries, internal levels are planned as in the B-Tree loader
+    @Override
+    public void bulkLoad(PrimitiveIterator.OfLong entries, int count, double fillFactor) {
+        if (getRootID() != -1) {
+            throw new IllegalStateException("Bulk loading requires an empty B+ tree.");
+        }
+        if (count == 0) {
+            return;
+        }
+
+        int d = getD();
+        int fill = Math.max(d, Math.min(2 * d, (int) Math.round(2 * d * fillFactor)));
+
+        // For leaves a "slot" is an entry, for internal nodes it is a child
+        List<Integer> slotsPerLevel = new ArrayList<>();
+        List<Integer> nodesPerLevel = new ArrayList<>();
+        int leaves = Math.max(1, Math.min((count + fill - 1) / fill, count / d));
+        slotsPerLevel.add(count);
+        nodesPerLevel.add(leaves);
+
+        int slots = leaves;
+        while (slots > 1) {
+            int nodes = Math.max(1, Math.min((slots + fill) / (fill + 1), slots / (d + 1)));
+            slotsPerLevel.add(slots);
+            nodesPerLevel.add(nodes);
+            slots = nodes;
+        }
+
+        BulkLoadState state = new BulkLoadState(entries, slotsPerLevel, nodesPerLevel);
+        long root = buildSubtree(nodesPerLevel.size() - 1, state);
+        if (state.previousLeaf != null) {
+            addCompletedNode(state.previousLeaf);
+        }
+        setRootID(KeyLocation.location(root));
+    }
+
+    private static class BulkLoadState {
+        private final PrimitiveIterator.OfLong entries;
+        private final List<Integer> slotsPerLevel;
+        private final List<Integer> nodesPerLevel;
+        private final int[] builtPerLevel;
+        private BTreeNode previousLeaf = null; // Held back until its next-leaf link is known
+
+        private BulkLoadState(PrimitiveIterator.OfLong entries, List<Integer> slotsPerLevel,
+                              List<Integer> nodesPerLevel) {
+            this.entries = entries;
+            this.slotsPerLevel = slotsPerLevel;
+            this.nodesPerLevel = nodesPerLevel;
+            this.builtPerLevel = new int[nodesPerLevel.size()];
+        }
+
+        private int slotsOfNextNode(int level) {
+            int nodes = nodesPerLevel.get(level);
+            int slots = slotsPerLevel.get(level);
+            int index = builtPerLevel[level]++;
+            return slots / nodes + (index < slots % nodes ? 1 : 0);
+        }
+    }
+
+    // Returns the smallest key of the subtree and its root ID, packed together
+    private long buildSubtree(int level, BulkLoadState state) {
+        BTreeNode node = new BTreeNode(this);
+        node.assignNodeID();
+        int slots = state.slotsOfNextNode(level);
+        int minKey;
+
+        if (level == 0) {
+            for (int i = 0; i < slots; i++) {
+                long entry = state.entries.nextLong();
+                node.getKeys().add(KeyLocation.key(entry));
+                node.getLocations().add(KeyLocation.location(entry));
+            }
+            minKey = node.getKeys().get(0);
+
+            if (state.previousLeaf != null) {
+                state.previousLeaf.setNextLeafID(node.getNodeID());
+                node.setPrevLeafID(state.previousLeaf.getNodeID());
+                addCompletedNode(state.previousLeaf);
+            }
+            state.previousLeaf = node;
+            return KeyLocation.pack(minKey, node.getNodeID());
+        }
+
+        long first = buildSubtree(level - 1, state);
+        minKey = KeyLocation.key(first);
+        node.getChildrenIDs().add(KeyLocation.location(first));
+        for (int i = 1; i < slots; i++) {
+            long child = buildSubtree(level - 1, state);
+            node.getKeys().add(KeyLocation.key(child));
+            node.getChildrenIDs().add(KeyLocation.location(child));
+        }
+
+        addCompletedNode(node);
+        return KeyLocation.pack(minKey, node.getNodeID());
+    }
+
+    private BTreeNode findLeaf(int key, Deque<PathEntry> path) {
+        BTreeNode node = loadNodeByID(getRootID());
+        while (!node.getChildrenIDs().isEmpty()) {
+            int i = node.upperBound(key); // Keys equal to a separator live right of it
+            if (path != null) {
+                path.push(new PathEntry(node, i));
+            }
+            node = loadNodeByID(node.getChildrenIDs().get(i));
+        }
+        return node;
+    }
+
+    private void splitLeaf(BTreeNode leaf, Deque<PathEntry> path) {
+        int d = getD();
+        BTreeNode right = new BTreeNode(this);
+        right.assignNodeID();
+
+        int size = leaf.getKeys().size();
+        right.getKeys().addAll(leaf.getKeys(), d, size);
+        right.getLocations().addAll(leaf.getLocations(), d, size);
+        leaf.getKeys().removeRange(d, size);
+        leaf.getLocations().removeRange(d, size);
+
+        right.setPrevLeafID(leaf.getNodeID());
+        right.setNextLeafID(leaf.getNextLeafID());
+        if (leaf.getNextLeafID() != -1) {
+            BTreeNode next = loadNodeByID(leaf.getNextLeafID());
+            next.setPrevLeafID(right.getNodeID());
+            saveNodes(next);
+        }
+        leaf.setNextLeafID(right.getNodeID());
+
+        saveNodes(leaf, right);
+        insertIntoParent(leaf, right.getKeys().get(0), right, path);
+    }
+
+    private void splitInternal(BTreeNode node, Deque<PathEntry> path) {
+        int d = getD();
+        BTreeNode right = new BTreeNode(this);
+        right.assignNodeID();
+
+        int size = node.getKeys().size();
+        int separator = node.getKeys().get(d);
+        right.getKeys().addAll(node.getKeys(), d + 1, size);
+        right.getChildrenIDs().addAll(node.getChildrenIDs(), d + 1, size + 1);
+        node.getKeys().removeRange(d, size);
+        node.getChildrenIDs().removeRange(d + 1, size + 1);
+
+        saveNodes(node, right);
+        insertIntoParent(node, separator, right, path);
+    }
+
+    private void insertIntoParent(BTreeNode left, int separator, BTreeNode right, Deque<PathEntry> path) {
+        if (path.isEmpty()) {
+            BTreeNode newRoot = new BTreeNode(this);
+            newRoot.assignNodeID();
+            newRoot.getKeys().add(separator);
+            newRoot.getChildrenIDs().add(left.getNodeID());
+            newRoot.getChildrenIDs().add(right.getNodeID());
+            setRootID(newRoot.getNodeID());
+            saveNodes(newRoot);
+            return;
+        }
+
+        PathEntry entry = path.pop();
+        BTreeNode parent = entry.node;
+        parent.getKeys().add(entry.childIndex, separator);
+        parent.getChildrenIDs().add(entry.childIndex + 1, right.getNodeID());
+        saveNodes(parent);
+
+        if (parent.getKeys().size() > 2 * getD()) {
+            splitInternal(parent, path);
+        }
+    }
+
+    // Fixes an underflowing non-root node by borrowing from a sibling or merging with it
+    private void rebalance(BTreeNode node, Deque<PathEntry> path) {
+        int d = getD();
+        PathEntry entry = path.peek();
+        BTreeNode parent = entry.node;
+        int index = entry.childIndex;
+        boolean leaf = node.getChildrenIDs().isEmpty();
+
+        BTreeNode left = index > 0 ? loadNodeByID(parent.getChildrenIDs().get(index - 1)) : null;
+        BTreeNode right = index < parent.getChildrenIDs().size() - 1 ?
+                loadNodeByID(parent.getChildrenIDs().get(index + 1)) : null;
+
+        if (left != null && left.getKeys().size() > d) {
+            int last = left.getKeys().size() - 1;
+            if (leaf) {
+                node.getKeys().add(0, left.getKeys().remove(last));
+                node.getLocations().add(0, left.getLocations().remove(last));
+                parent.getKeys().set(index - 1, node.getKeys().get(0));
+            } else {
+                node.getKeys().add(0, parent.getKeys().get(index - 1));
+                node.getChildrenIDs().add(0, left.getChildrenIDs().remove(last + 1));
+                parent.getKeys().set(index - 1, left.getKeys().remove(last));
+            }
+            saveNodes(left, node, parent);
+            return;
+        }
+
+        if (right != null && right.getKeys().size() > d) {
+            if (leaf) {
+                node.getKeys().add(right.getKeys().remove(0));
+                node.getLocations().add(right.getLocations().remove(0));
+                parent.getKeys().set(index, right.getKeys().get(0));
+            } else {
+                node.getKeys().add(parent.getKeys().get(index));
+                node.getChildrenIDs().add(right.getChildrenIDs().remove(0));
+                parent.getKeys().set(index, right.getKeys().remove(0));
+            }
+            saveNodes(right, node, parent);
+            return;
+        }
+
+        if (left != null) {
+            merge(left, node, parent, index - 1);
+        } else {
+            merge(node, right, parent, index);
+        }
+
+        path.pop();
+        if (path.isEmpty()) {
+            // Root collapse: the last separator moved down
+            if (parent.getKeys().isEmpty()) {
+                setRootID(parent.getChildrenIDs().get(0));
+                removeNode(parent);
+            }
+        } else if (parent.getKeys().size() < d) {
+            rebalance(parent, path);
+        }
+    }
+
+    // Moves everything from the right node into the left one and drops the separator between them
+    private void merge(BTreeNode left, BTreeNode right, BTreeNode parent, int separatorIndex) {
+        if (left.getChildrenIDs().isEmpty()) {
+            left.getKeys().addAll(right.getKeys());
+            left.getLocations().addAll(right.getLocations());
+            left.setNextLeafID(right.getNextLeafID());
+            if (right.getNextLeafID() != -1) {
+                BTreeNode next = loadNodeByID(right.getNextLeafID());
+                next.setPrevLeafID(left.getNodeID());
+                saveNodes(next);
+            }
+        } else {
+            left.getKeys().add(parent.getKeys().get(separatorIndex));
+            left.getKeys().addAll(right.getKeys());
+            left.getChildrenIDs().addAll(right.getChildrenIDs());
+        }
+
+        parent.getKeys().remove(separatorIndex);
+        parent.getChildrenIDs().remove(separatorIndex + 1);
+
+        removeNode(right);
+        saveNodes(left, parent);
+    }
+
+    private void removeNode(BTreeNode node) {
+        getModifiedNodes().remove(node);
+        addDeletedNode(node);
+        deleteNodeFromMap(node);
+    }
+
+    private void saveNodes(BTreeNode... nodes) {
+        for (BTreeNode node : nodes) {
+            writeNodeToMap(node);
+            addModifiedNode(node);
+        }
+    }
+}
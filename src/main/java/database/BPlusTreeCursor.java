@@ -0,0 +1,91 @@
+package database;
+
+// Cursor over a B+ tree: after the initial descent it only follows the leaf chain,
+// so at most one leaf is pinned at a time.
+public class BPlusTreeCursor implements IndexCursor {
+    private final BPlusTree tree;
+    private final int limit;
+    private BTreeNode leaf = null;
+    private int index = 0;
+    private int returned = 0;
+    private int key;
+    private int location;
+
+    // A limit of 0 or less means no limit
+    BPlusTreeCursor(BPlusTree tree, int limit) {
+        this.tree = tree;
+        this.limit = limit;
+    }
+
+    @Override
+    public void seek(int key) {
+        close();
+        returned = 0;
+
+        int nodeID = tree.getRootID();
+        while (nodeID != -1) {
+            BTreeNode node = tree.pinNode(nodeID);
+            if (node == null) {
+                return;
+            }
+
+            if (node.getChildrenIDs().isEmpty()) {
+                leaf = node;
+                index = node.lowerBound(key);
+                return;
+            }
+
+            nodeID = node.getChildrenIDs().get(node.upperBound(key));
+            tree.unpinNode(node.getNodeID());
+        }
+    }
+
+    @Override
+    public void seekFirst() {
+        seek(Integer.MIN_VALUE);
+    }
+
+    @Override
+    public boolean next() {
+        if (limit > 0 && returned >= limit) {
+            close();
+            return false;
+        }
+
+        while (leaf != null && index >= leaf.getKeys().size()) {
+            int nextLeafID = leaf.getNextLeafID();
+            close();
+            if (nextLeafID != -1) {
+                leaf = tree.pinNode(nextLeafID);
+                index = 0;
+            }
+        }
+        if (leaf == null) {
+            return false;
+        }
+
+        key = leaf.getKeys().get(index);
+        location = leaf.getLocations().get(index);
+        index++;
+        returned++;
+        return true;
+    }
+
+    @Override
+    public int getKey() {
+        return key;
+    }
+
+    @Override
+    public int getLocation() {
+        return location;
+    }
+
+    @Override
+    public void close() {
+        if (leaf != null) {
+            tree.unpinNode(leaf.getNodeID());
+            leaf = null;
+        }
+    }
+}
@@ -1,64 +1,334 @@
 package database;
 
+import memory.KeyLocation;
+import memory.RAM;
+
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
-
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.function.IntSupplier;
+
+// With latching enabled, any number of readers use optimisticSearch or latchedSearch while one writer
+// at a time changes the tree. The writer first crabs down with write latches and keeps only the part
+// of the path that the change can reach; every other node it loads is write-latched as well until
+// clearAllNodes. Optimistic readers take no latches and validate node versions instead; latched
+// readers crab down with read latches, holding at most a node and its parent.
 public class BTree {
-    private int rootID;
+    private volatile int rootID;
     private final int d;
     private int nodeIDCounter = 0;
-    private final Map<Integer, BTreeNode> nodes;
+    private final Map<Integer, BTreeNode> nodes; // Nodes pinned by the current operation
     private final List<BTreeNode> modifiedNodes = new ArrayList<>();
     private final List<BTreeNode> deletedNodes = new ArrayList<>();
-    private final DatabaseManager manager;
-
-    public BTree(int d, DatabaseManager manager) {
+    private final BufferPool bufferPool;
+    private final FreePageList freePages = new FreePageList();
+    private static final int RESTART = -2; // Returned by a reader that had to let go of its path
+    private static final int OPTIMISTIC_ATTEMPTS = 16; // Before a reader falls back to latches
+    private boolean latching = false;
+    private final OptimisticLatch rootLatch = new OptimisticLatch(); // Guards rootID
+    private final List<OptimisticLatch> writeLatches = new ArrayList<>(); // Held by the writer
+    private final Set<Integer> passedNodeIDs = new HashSet<>(); // On the writer's path, latch released
+
+    public BTree(int d, BufferPool bufferPool) {
         this.rootID = -1;
         this.d = d;
         this.nodes = new HashMap<>();
-        this.manager = manager;
+        this.bufferPool = bufferPool;
     }
 
     public int getD() {
         return d;
     }
 
+    // Largest d for which a full node (2d keys, 2d locations and 2d + 1 children) fits in a page
+    public static int maxOrder(int pageSize) {
+        return (pageSize - RAM.NODE_HEADER_SIZE - Integer.BYTES) / (6 * Integer.BYTES);
+    }
+
+    // Released node IDs are reused before the counter grows
     public int getNextNodeID() {
-        return nodeIDCounter++;
+        int nodeID = freePages.allocate();
+        return nodeID != -1 ? nodeID : nodeIDCounter++;
+    }
+
+    public FreePageList getFreePages() {
+        return freePages;
+    }
+
+    public int getNodeIDCounter() {
+        return nodeIDCounter;
+    }
+
+    public void setNodeIDCounter(int nodeIDCounter) {
+        this.nodeIDCounter = nodeIDCounter;
+    }
+
+    public int getRootID() {
+        return rootID;
     }
 
     public void setRootID(int rootID) {
         this.rootID = rootID;
+        rootLatch.markChanged();
     }
 
     public Map<Integer, BTreeNode> getAllNodes() {
         return nodes;
     }
 
+    public boolean isLatching() {
+        return latching;
+    }
+
+    public void setLatching(boolean latching) {
+        this.latching = latching;
+    }
+
+    // Unpins every node used by the current operation; they stay cached in the buffer pool.
+    // The latches go first, since an unpinned node may be evicted and marked obsolete right away.
     public void clearAllNodes() {
+        for (int i = writeLatches.size() - 1; i >= 0; i--) {
+            writeLatches.get(i).writeUnlock();
+        }
+        writeLatches.clear();
+        passedNodeIDs.clear();
+
+        for (int nodeID : nodes.keySet()) {
+            bufferPool.unpin(nodeID);
+        }
         nodes.clear();
     }
 
     public BTreeNode loadNodeByID(int nodeID) {
         if (!nodes.containsKey(nodeID)) {
-            BTreeNode node = manager.loadNodeFromDisk(nodeID);
+            BTreeNode node = bufferPool.fetch(nodeID);
             if (node == null) {
                 return null;
             }
+            if (latching) {
+                latchForWrite(node.getLatch());
+            }
             nodes.put(nodeID, node);
         }
 
         return nodes.get(nodeID);
     }
 
+    private void latchForWrite(OptimisticLatch latch) {
+        latch.writeLock();
+        writeLatches.add(latch);
+    }
+
+    // Keeps readers out of the whole tree until clearAllNodes; later descents then keep every latch
+    public void latchTree() {
+        if (latching && !rootLatch.isWriteLockedByCurrentThread()) {
+            latchForWrite(rootLatch);
+        }
+    }
+
+    // Called by insert and delete before they change anything. Descends towards the key with write
+    // latches; at a node that cannot split (insert) or underflow (delete), the latches of its
+    // ancestors are released, since the change cannot propagate past it.
+    protected void latchPathForWrite(int key, boolean isInsert) {
+        if (!latching) {
+            return;
+        }
+
+        boolean wholeTree = rootLatch.isWriteLockedByCurrentThread();
+        latchTree();
+        if (rootID == -1) {
+            return;
+        }
+
+        BTreeNode node = loadNodeByID(rootID);
+        boolean keepPath = wholeTree;
+        while (true) {
+            boolean safe = isInsert ? node.getKeys().size() < 2 * d : node.getKeys().size() > d;
+            if (safe && !keepPath) {
+                releaseAncestors(node);
+            }
+            // A B-Tree delete replaces the key with its predecessor, so the node holding it stays latched
+            keepPath |= !isInsert && holdsDeletedKey(node, key);
+            if (node.getChildrenIDs().isEmpty()) {
+                return;
+            }
+            node = loadNodeByID(node.getChildrenIDs().get(childIndex(node, key)));
+        }
+    }
+
+    private void releaseAncestors(BTreeNode node) {
+        // Every latch before the node's own one belongs to the root pointer or an ancestor
+        int own = writeLatches.size() - 1;
+        for (int i = 0; i < own; i++) {
+            writeLatches.get(i).writeUnlock();
+        }
+        writeLatches.subList(0, own).clear();
+        for (int nodeID : nodes.keySet()) {
+            if (nodeID != node.getNodeID()) {
+                passedNodeIDs.add(nodeID);
+            }
+        }
+    }
+
+    // Looks the key up without taking any latch, so lookups on many threads do not contend on the
+    // upper levels. After repeated conflicts with the writer it waits on the latches instead.
+    public int optimisticSearch(int key) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            int location = tryOptimisticSearch(key);
+            if (location != RESTART) {
+                return location;
+            }
+            Thread.onSpinWait();
+        }
+        return latchedSearch(key);
+    }
+
+    // Every value read from a node is only used once the node's version has been validated, and the
+    // child's version is read before the parent is validated, so the child was the parent's child
+    // at that moment. A node read while the writer changes it can be inconsistent enough to throw;
+    // that is a conflict like any other.
+    private int tryOptimisticSearch(int key) {
+        try {
+            long rootVersion = rootLatch.readVersion();
+            int nodeID = rootID;
+            if (!rootLatch.validate(rootVersion)) {
+                return RESTART;
+            }
+            if (nodeID == -1) {
+                return -1;
+            }
+
+            BTreeNode node = residentNode(nodeID);
+            long version = node.getLatch().readVersion();
+            if (!rootLatch.validate(rootVersion)) {
+                return RESTART;
+            }
+
+            while (true) {
+                int location = locationIn(node, key);
+                boolean leaf = node.getChildrenIDs().isEmpty();
+                int childID = leaf ? -1 : node.getChildrenIDs().get(childIndex(node, key));
+                if (!node.getLatch().validate(version)) {
+                    return RESTART;
+                }
+                if (location != -1 || leaf) {
+                    return location;
+                }
+
+                BTreeNode child = residentNode(childID);
+                long childVersion = child.getLatch().readVersion();
+                if (!node.getLatch().validate(version)) {
+                    return RESTART;
+                }
+                node = child;
+                version = childVersion;
+            }
+        } catch (RuntimeException e) {
+            return RESTART;
+        }
+    }
+
+    // The buffer pool's copy of the node, without pinning it; an evicted copy is marked obsolete
+    private BTreeNode residentNode(int nodeID) {
+        BTreeNode node = bufferPool.peek(nodeID);
+        if (node == null) {
+            node = bufferPool.fetch(nodeID);
+            bufferPool.unpin(node);
+        }
+        return node;
+    }
+
+    // Looks the key up like search, but may run in parallel with other readers and one writer
+    public int latchedSearch(int key) {
+        while (true) {
+            int location = tryLatchedSearch(key);
+            if (location != RESTART) {
+                return location;
+            }
+        }
+    }
+
+    // A reader never waits for a child while it holds the parent: the writer may be waiting for a
+    // node the reader holds (a sibling in a merge), so the reader lets go, waits and starts over
+    private int tryLatchedSearch(int key) {
+        rootLatch.readLock();
+        if (rootID == -1) {
+            rootLatch.readUnlock();
+            return -1;
+        }
+        BTreeNode node = pinNode(rootID);
+        node.getLatch().readLock();
+        rootLatch.readUnlock();
+
+        while (true) {
+            int location = locationIn(node, key);
+            if (location != -1 || node.getChildrenIDs().isEmpty()) {
+                node.getLatch().readUnlock();
+                bufferPool.unpin(node);
+                return location;
+            }
+
+            BTreeNode child = pinNode(node.getChildrenIDs().get(childIndex(node, key)));
+            boolean latched = child.getLatch().tryReadLock();
+            node.getLatch().readUnlock();
+            bufferPool.unpin(node);
+            if (!latched) {
+                child.getLatch().readLock();
+                child.getLatch().readUnlock();
+                bufferPool.unpin(child);
+                return RESTART;
+            }
+            node = child;
+        }
+    }
+
+    // The key's location if the node stores it, otherwise -1
+    protected int locationIn(BTreeNode node, int key) {
+        int i = node.lowerBound(key);
+        return i < node.getKeys().size() && node.getKeys().get(i) == key ? node.getLocations().get(i) : -1;
+    }
+
+    // The child whose subtree would hold the key
+    protected int childIndex(BTreeNode node, int key) {
+        return node.lowerBound(key);
+    }
+
+    protected boolean holdsDeletedKey(BTreeNode node, int key) {
+        return locationIn(node, key) != -1;
+    }
+
+    // Pins a node outside of the current operation's working set, e.g. for a cursor
+    BTreeNode pinNode(int nodeID) {
+        return bufferPool.fetch(nodeID);
+    }
+
+    void unpinNode(int nodeID) {
+        bufferPool.unpin(nodeID);
+    }
+
+    public IndexCursor openCursor(int limit) {
+        return new BTreeCursor(this, limit);
+    }
+
     public void addModifiedNode(BTreeNode node) {
+        checkLatched(node);
+        node.getLatch().markChanged();
         if (!modifiedNodes.contains(node)) {
             modifiedNodes.add(node);
         }
     }
 
+    private void checkLatched(BTreeNode node) {
+        if (passedNodeIDs.contains(node.getNodeID())) {
+            throw new IllegalStateException("Node " + node.getNodeID() + " changed after its latch was released.");
+        }
+    }
+
     public List<BTreeNode> getModifiedNodes() {
         return modifiedNodes;
     }
@@ -68,6 +338,8 @@ public class BTree {
     }
 
     public void addDeletedNode(BTreeNode node) {
+        checkLatched(node);
+        node.getLatch().markObsolete();
         if (!deletedNodes.contains(node)) {
             deletedNodes.add(node);
         }
@@ -82,21 +354,25 @@ public class BTree {
     }
 
     public void writeNodeToMap(BTreeNode node) {
-        nodes.put(node.getNodeID(), node);
+        if (!nodes.containsKey(node.getNodeID())) {
+            bufferPool.add(node);
+            nodes.put(node.getNodeID(), node);
+        }
     }
 
     public void deleteNodeFromMap(BTreeNode node) {
         nodes.remove(node.getNodeID());
+        bufferPool.discard(node.getNodeID());
     }
 
     public boolean insert(int key, int location) {
-
+        latchPathForWrite(key, true);
         if (rootID == -1) {
             BTreeNode root = new BTreeNode(this);
             root.assignNodeID();
             root.getKeys().add(key);
             root.getLocations().add(location);
-            rootID = root.getNodeID();
+            setRootID(root.getNodeID());
             writeNodeToMap(root);
             addModifiedNode(root);
             return true;
@@ -107,11 +383,12 @@ public class BTree {
     }
 
     public int delete(int key) {
+        latchPathForWrite(key, false);
         if (rootID == -1) {
             return -1;
         }
         BTreeNode root = loadNodeByID(rootID);
-        if (root.getKeys().size() == 1 && root.getChildrenIDs().isEmpty()) {
+        if (root.getKeys().size() == 1 && root.getChildrenIDs().isEmpty() && root.getKeys().get(0) == key) {
             addDeletedNode(root);
             setRootID(-1);
             return root.getLocations().remove(0);
@@ -119,6 +396,102 @@ public class BTree {
         return root.deleteNode(key);
     }
 
+    // Inserts keys sorted in ascending order, descending the tree once per leaf they go to rather
+    // than once per key: the descent notes the range of keys that lead to the same leaf, and the
+    // following keys in that range are added to the leaf directly while it has room. A key that
+    // would make the leaf overflow is inserted from the root, so splits and compensations run as
+    // usual. newLocation is asked for the location of every new key; a key that is already in the
+    // tree, or earlier in the keys, gets -1 in locations. Readers wait for the whole tree, as for an
+    // update, and the nodes stay in the working set until clearAllNodes.
+    // Returns the number of descents from the root.
+    public int insertSorted(int[] keys, int count, IntSupplier newLocation, int[] locations) {
+        latchTree();
+        int descents = 0;
+        BTreeNode leaf = null;
+        long[] range = new long[2]; // The keys in [range[0], range[1]) lead to the leaf
+
+        for (int i = 0; i < count; i++) {
+            int key = keys[i];
+            if (leaf == null || key < range[0] || key >= range[1]) {
+                descents++;
+                if (rootID == -1) {
+                    locations[i] = newLocation.getAsInt();
+                    insert(key, locations[i]);
+                    continue;
+                }
+                leaf = findLeafForInsert(key, range);
+                if (leaf == null) {
+                    locations[i] = -1;
+                    continue;
+                }
+            }
+
+            int j = leaf.lowerBound(key);
+            if (j < leaf.getKeys().size() && leaf.getKeys().get(j) == key) {
+                locations[i] = -1;
+                continue;
+            }
+            locations[i] = newLocation.getAsInt();
+            if (leaf.getKeys().size() < 2 * d) {
+                leaf.getKeys().add(j, key);
+                leaf.getLocations().add(j, locations[i]);
+                addModifiedNode(leaf);
+            } else {
+                descents++;
+                insert(key, locations[i]);
+                leaf = null;
+            }
+        }
+        return descents;
+    }
+
+    // The leaf a new key would go to, with the range of keys that lead to the same leaf, or null if
+    // an internal node already holds the key
+    private BTreeNode findLeafForInsert(int key, long[] range) {
+        range[0] = Integer.MIN_VALUE;
+        range[1] = Integer.MAX_VALUE + 1L;
+        BTreeNode node = loadNodeByID(rootID);
+        while (!node.getChildrenIDs().isEmpty()) {
+            if (locationIn(node, key) != -1) {
+                return null;
+            }
+            int i = childIndex(node, key);
+            if (i > 0) {
+                range[0] = firstKeyRightOf(node.getKeys().get(i - 1));
+            }
+            if (i < node.getKeys().size()) {
+                range[1] = node.getKeys().get(i);
+            }
+            node = loadNodeByID(node.getChildrenIDs().get(i));
+        }
+        return node;
+    }
+
+    // The smallest key that goes right of the separator; the separator itself is stored in the node
+    protected long firstKeyRightOf(int separator) {
+        return separator + 1L;
+    }
+
+    // Points every key of the packed (key, location) entries, sorted by key, at its new location.
+    // Neighbouring keys share most of their path, and the nodes stay in the working set until
+    // clearAllNodes, so every node is read at most once. Returns the number of keys found.
+    public int relocate(long[] entries, int count) {
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (relocate(KeyLocation.key(entries[i]), KeyLocation.location(entries[i]))) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    protected boolean relocate(int key, int location) {
+        if (rootID == -1) {
+            return false;
+        }
+        return loadNodeByID(rootID).relocate(key, location);
+    }
+
     public Integer search(int key) {
         if (rootID == -1) {
             return -1;
@@ -127,6 +500,113 @@ public class BTree {
         return root.search(key);
     }
 
+    // Looks up keys sorted in ascending order in one walk over the tree. A node is visited once for
+    // all keys whose paths lead through it, so keys that share the upper levels share those nodes.
+    // Stores the location of every key, or -1, in locations, and in pathLengths the number of nodes a
+    // lookup of the key on its own would visit. Like a cursor, the walk pins only the nodes above
+    // it and leaves the working set alone. Returns the number of nodes visited.
+    public int searchSorted(int[] keys, int count, int[] locations, int[] pathLengths) {
+        if (rootID == -1) {
+            Arrays.fill(locations, 0, count, -1);
+            return 0;
+        }
+        return count == 0 ? 0 : searchSorted(rootID, keys, 0, count, locations, pathLengths);
+    }
+
+    private int searchSorted(int nodeID, int[] keys, int from, int to, int[] locations, int[] pathLengths) {
+        BTreeNode node = pinNode(nodeID);
+        boolean leaf = node.getChildrenIDs().isEmpty();
+        int visited = 1;
+
+        int i = from;
+        while (i < to) {
+            pathLengths[i]++;
+            int location = locationIn(node, keys[i]);
+            if (location != -1 || leaf) {
+                locations[i++] = location;
+                continue;
+            }
+
+            // The following keys that are not in the node and go to the same child share the descent
+            int child = childIndex(node, keys[i]);
+            int end = i + 1;
+            while (end < to && locationIn(node, keys[end]) == -1 && childIndex(node, keys[end]) == child) {
+                pathLengths[end]++;
+                end++;
+            }
+            visited += searchSorted(node.getChildrenIDs().get(child), keys, i, end, locations, pathLengths);
+            i = end;
+        }
+
+        unpinNode(nodeID);
+        return visited;
+    }
+
+    // Builds the tree bottom-up from entries sorted by key, without splits or compensations.
+    // Every node except the root gets between d and 2d keys, as close to fillFactor * 2d as possible.
+    public void bulkLoad(PrimitiveIterator.OfLong entries, int count, double fillFactor) {
+        if (rootID != -1) {
+            throw new IllegalStateException("Bulk loading requires an empty B-Tree.");
+        }
+        if (count == 0) {
+            return;
+        }
+
+        int fill = Math.max(d, Math.min(2 * d, (int) Math.round(2 * d * fillFactor)));
+
+        // Plan the number of nodes on every level, from the leaves up to the root
+        List<Integer> slotsPerLevel = new ArrayList<>();
+        List<Integer> nodesPerLevel = new ArrayList<>();
+        int slots = count + 1;
+        while (true) {
+            int nodes = Math.max(1, Math.min((slots + fill) / (fill + 1), slots / (d + 1)));
+            slotsPerLevel.add(slots);
+            nodesPerLevel.add(nodes);
+            if (nodes == 1) {
+                break;
+            }
+            slots = nodes;
+        }
+
+        int[] builtPerLevel = new int[nodesPerLevel.size()];
+        rootID = buildSubtree(nodesPerLevel.size() - 1, entries, slotsPerLevel, nodesPerLevel, builtPerLevel);
+    }
+
+    private int buildSubtree(int level, PrimitiveIterator.OfLong entries, List<Integer> slotsPerLevel,
+                             List<Integer> nodesPerLevel, int[] builtPerLevel) {
+        BTreeNode node = new BTreeNode(this);
+        node.assignNodeID();
+
+        // Keys of a level are spread evenly over its nodes
+        int nodes = nodesPerLevel.get(level);
+        int keysOnLevel = slotsPerLevel.get(level) - nodes;
+        int index = builtPerLevel[level]++;
+        int keysCount = keysOnLevel / nodes + (index < keysOnLevel % nodes ? 1 : 0);
+
+        for (int i = 0; i < keysCount; i++) {
+            if (level > 0) {
+                node.getChildrenIDs().add(buildSubtree(level - 1, entries,
+                        slotsPerLevel, nodesPerLevel, builtPerLevel));
+            }
+            long entry = entries.nextLong();
+            node.getKeys().add(KeyLocation.key(entry));
+            node.getLocations().add(KeyLocation.location(entry));
+        }
+        if (level > 0) {
+            node.getChildrenIDs().add(buildSubtree(level - 1, entries,
+                    slotsPerLevel, nodesPerLevel, builtPerLevel));
+        }
+
+        addCompletedNode(node);
+        return node.getNodeID();
+    }
+
+    // A bulk-loaded node is complete, so it can leave the pool as soon as the pool needs the frame
+    void addCompletedNode(BTreeNode node) {
+        bufferPool.add(node);
+        bufferPool.unpin(node.getNodeID());
+    }
+
     public int getHeight() {
         if (rootID == -1) {
             return 0;
@@ -168,13 +648,13 @@ public class BTree {
         System.out.println(indent + "  Keys: " + node.getKeys());
         System.out.println(indent + "  Locations: " + node.getLocations());
 
-        List<Integer> children = node.getChildrenIDs();
+        IntList children = node.getChildrenIDs();
         if (children.isEmpty()) {
             System.out.println(indent + "  (Leaf node)");
         } else {
             System.out.println(indent + "  Children:");
-            for (int childID : children) {
-                printTreeRecursively(childID, level + 1);
+            for (int i = 0; i < children.size(); i++) {
+                printTreeRecursively(children.get(i), level + 1);
             }
         }
     }
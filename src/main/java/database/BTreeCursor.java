@@ -0,0 +1,118 @@
+package database;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// In-order iterator over the keys of a B-Tree. The cursor keeps the path from the root to the
+// current position on a stack; those nodes stay pinned in the buffer pool until they are popped.
+public class BTreeCursor implements IndexCursor {
+    private final BTree tree;
+    private final int limit;
+    private final Deque<Position> stack = new ArrayDeque<>();
+    private int returned = 0;
+    private int key;
+    private int location;
+
+    private static class Position {
+        private final BTreeNode node;
+        private int index; // Next key of the node to return; children before it were already visited
+
+        private Position(BTreeNode node, int index) {
+            this.node = node;
+            this.index = index;
+        }
+    }
+
+    // A limit of 0 or less means no limit
+    BTreeCursor(BTree tree, int limit) {
+        this.tree = tree;
+        this.limit = limit;
+    }
+
+    @Override
+    public void seek(int key) {
+        close();
+        returned = 0;
+
+        int nodeID = tree.getRootID();
+        while (nodeID != -1) {
+            BTreeNode node = tree.pinNode(nodeID);
+            if (node == null) {
+                return;
+            }
+
+            int i = node.lowerBound(key);
+            stack.push(new Position(node, i));
+
+            if ((i < node.getKeys().size() && node.getKeys().get(i) == key) || node.getChildrenIDs().isEmpty()) {
+                return;
+            }
+            nodeID = node.getChildrenIDs().get(i);
+        }
+    }
+
+    @Override
+    public void seekFirst() {
+        seek(Integer.MIN_VALUE);
+    }
+
+    @Override
+    public boolean next() {
+        if (limit > 0 && returned >= limit) {
+            close();
+            return false;
+        }
+
+        while (!stack.isEmpty()) {
+            Position top = stack.peek();
+            BTreeNode node = top.node;
+
+            if (top.index >= node.getKeys().size()) {
+                stack.pop();
+                tree.unpinNode(node.getNodeID());
+                continue;
+            }
+
+            key = node.getKeys().get(top.index);
+            location = node.getLocations().get(top.index);
+            top.index++;
+
+            // The next key after a separator is the leftmost key of its right subtree
+            if (!node.getChildrenIDs().isEmpty()) {
+                pushLeftmostPath(node.getChildrenIDs().get(top.index));
+            }
+
+            returned++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getKey() {
+        return key;
+    }
+
+    @Override
+    public int getLocation() {
+        return location;
+    }
+
+    @Override
+    public void close() {
+        while (!stack.isEmpty()) {
+            tree.unpinNode(stack.pop().node.getNodeID());
+        }
+    }
+
+    private void pushLeftmostPath(int nodeID) {
+        while (nodeID != -1) {
+            BTreeNode node = tree.pinNode(nodeID);
+            if (node == null) {
+                return;
+            }
+            stack.push(new Position(node, 0));
+            nodeID = node.getChildrenIDs().isEmpty() ? -1 : node.getChildrenIDs().get(0);
+        }
+    }
+}
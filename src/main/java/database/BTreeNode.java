@@ -1,88 +1,85 @@
 package database;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
+// Node of the B-Tree. Operations that restructure the tree receive the path from the root to the
+// node (top of the stack = parent), so nodes do not store a parent pointer.
 public class BTreeNode {
     private final int d; // Minimum degree
     private int nodeID;
-    private int parentID;
-    private final List<Integer> keys;       // Keys in the node
-    private final List<Integer> locations; // Corresponding data locations
-    private final List<Integer> childrenIDs; // Indices of child nodes
+    private final IntList keys;       // Keys in the node
+    private final IntList locations; // Corresponding data locations
+    private final IntList childrenIDs; // Indices of child nodes
+    private int prevLeafID = -1; // Neighbouring leaves, only linked in a B+ tree
+    private int nextLeafID = -1;
     private final BTree tree;
+    private final OptimisticLatch latch = new OptimisticLatch(); // Used when the tree latches
 
     public BTreeNode(BTree tree) {
         this.tree = tree;
         this.d = tree.getD();
         this.nodeID = -1; // Assigned later
-        this.parentID = -1;
-        this.keys = new ArrayList<>();
-        this.locations = new ArrayList<>();
-        this.childrenIDs = new ArrayList<>();
+        // Room for the one extra entry a node holds before it is split
+        this.keys = new IntList(2 * d + 1);
+        this.locations = new IntList(2 * d + 1);
+        this.childrenIDs = new IntList(2 * d + 2);
     }
 
-    public BTreeNode(BTree tree, int nodeID, int parentID, List<Integer> keys,
-                     List<Integer> locations, List<Integer> childrenIDs) {
+    public BTreeNode(BTree tree, int nodeID, IntList keys, IntList locations, IntList childrenIDs) {
         this.tree = tree;
         this.d = tree.getD();
         this.nodeID = nodeID;
-        this.parentID = parentID;
         this.keys = keys;
         this.locations = locations;
         this.childrenIDs = childrenIDs;
     }
 
+    public OptimisticLatch getLatch() {
+        return latch;
+    }
+
     public void assignNodeID() {
         this.nodeID = tree.getNextNodeID();
     }
 
     public boolean insertNode(int key, int location) {
-        int i = keys.size() - 1;
+        return insertNode(key, location, new ArrayDeque<>());
+    }
+
+    private boolean insertNode(int key, int location, Deque<BTreeNode> path) {
+        int i = lowerBound(key);
         boolean result;
 
-        if (keys.contains(key)) {
+        if (i < keys.size() && keys.get(i) == key) {
             return false;
         }
 
         // If the node is a leaf, insert the key directly
         if (childrenIDs.isEmpty()) {
-            i = keys.size() - 1;
-            keys.add(0); // Placeholder to shift elements
-            locations.add(0);
-
-            while (i >= 0 && keys.get(i) > key) {
-                keys.set(i + 1, keys.get(i));
-                locations.set(i + 1, locations.get(i));
-                i--;
-            }
-            keys.set(i + 1, key);
-            locations.set(i + 1, location);
+            keys.add(i, key);
+            locations.add(i, location);
 
             // check for overflow
             if (keys.size() > 2*d) {
-                if (!compensate(true)) split();
+                if (!compensate(true, path)) split(path);
             }
 
             saveNodes(this);
             return true;
         } else {
-            // Find the child that will have the new key
-            while (i >= 0 && keys.get(i) > key) {
-                i--;
-            }
-            i++;
-
+            // The child left of the first larger key will have the new key
             BTreeNode child = tree.loadNodeByID(childrenIDs.get(i));
             // Recursive insertion into the appropriate child
-            result = child.insertNode(key, location);
+            path.push(this);
+            result = child.insertNode(key, location, path);
         }
         return result;
     }
 
-    public void split() {
+    public void split(Deque<BTreeNode> path) {
         // If the node is the root, create a new root
-        if (getParentID() == -1) {
+        if (path.isEmpty()) {
             BTreeNode newRoot = new BTreeNode(tree);
             newRoot.assignNodeID();
 
@@ -93,61 +90,51 @@ public class BTreeNode {
 
             BTreeNode newNode = new BTreeNode(tree);
             newNode.assignNodeID();
-            newNode.setParentID(newRoot.getNodeID());
 
             // Find the middle index (t) for splitting
             int keysSize = keys.size();
 
-            List<Integer> newNodeKeys = new ArrayList<>(getKeys().subList(mid + 1, keysSize));
-            List<Integer> newNodeLocations = new ArrayList<>(getLocations().subList(mid + 1, keysSize));
-
-            newNode.getKeys().addAll(newNodeKeys);
-            newNode.getLocations().addAll(newNodeLocations);
+            newNode.getKeys().addAll(getKeys(), mid + 1, keysSize);
+            newNode.getLocations().addAll(getLocations(), mid + 1, keysSize);
 
-            getKeys().subList(mid, keysSize).clear();
-            getLocations().subList(mid, keysSize).clear();
+            getKeys().removeRange(mid, keysSize);
+            getLocations().removeRange(mid, keysSize);
             if (!childrenIDs.isEmpty()){
-                newNode.getChildrenIDs().addAll(childrenIDs.subList(mid + 1, childrenIDs.size()));
-                getChildrenIDs().subList(mid + 1, childrenIDs.size()).clear();
-                updateParentIDs(newNode.getChildrenIDs(), newNode.getNodeID());
+                newNode.getChildrenIDs().addAll(childrenIDs, mid + 1, childrenIDs.size());
+                getChildrenIDs().removeRange(mid + 1, childrenIDs.size());
             }
 
             newRoot.getChildrenIDs().add(nodeID);
             newRoot.getChildrenIDs().add(newNode.getNodeID());
 
-            setParentID(newRoot.getNodeID());
             tree.setRootID(newRoot.getNodeID());
             saveNodes(newRoot, this, newNode);
             return;
         }
 
-        BTreeNode parent = tree.loadNodeByID(parentID);
+        BTreeNode parent = path.peek();
         int i = parent.getChildrenIDs().indexOf(nodeID);
 
         // Create a new node to store the right half of the keys
         BTreeNode newNode = new BTreeNode(tree);
         newNode.assignNodeID();
-        newNode.setParentID(parentID);
 
         // Find the middle index (t) for splitting
         int mid = d;
         int keysSize = getKeys().size();
 
         // Move the keys, locations and children to the new node
-        List<Integer> newNodeKeys = new ArrayList<>(getKeys().subList(mid + 1, keysSize));
-        List<Integer> newNodeLocations = new ArrayList<>(getLocations().subList(mid + 1, keysSize));
-        newNode.getKeys().addAll(newNodeKeys);
-        newNode.getLocations().addAll(newNodeLocations);
+        newNode.getKeys().addAll(getKeys(), mid + 1, keysSize);
+        newNode.getLocations().addAll(getLocations(), mid + 1, keysSize);
 
         // Clear the keys, locations, and childrenIDs from the current node
-        getKeys().subList(mid + 1, keysSize).clear();
-        getLocations().subList(mid + 1, keysSize).clear();
+        getKeys().removeRange(mid + 1, keysSize);
+        getLocations().removeRange(mid + 1, keysSize);
 
         // if the current node has children, move the children to the new node
         if (!childrenIDs.isEmpty()) {
-            newNode.getChildrenIDs().addAll(childrenIDs.subList(mid + 1, childrenIDs.size()));
-            getChildrenIDs().subList(mid + 1, childrenIDs.size()).clear();
-            updateParentIDs(newNode.getChildrenIDs(), newNode.getNodeID());
+            newNode.getChildrenIDs().addAll(childrenIDs, mid + 1, childrenIDs.size());
+            getChildrenIDs().removeRange(mid + 1, childrenIDs.size());
         }
 
         // Insert the middle key from the child node into the parent node
@@ -159,13 +146,14 @@ public class BTreeNode {
 
         // If the parent node exceeds its maximum size after the split, we need to handle it recursively
         if (parent.getKeys().size() > 2*d) {
-            if (!parent.compensate(true)) parent.split();
+            path.pop();
+            if (!parent.compensate(true, path)) parent.split(path);
         }
     }
 
-    public boolean compensate(boolean isInsert) {
-        if (parentID == -1) return false;
-        BTreeNode parent = tree.loadNodeByID(parentID);
+    public boolean compensate(boolean isInsert, Deque<BTreeNode> path) {
+        if (path.isEmpty()) return false;
+        BTreeNode parent = path.peek();
         int childIndex = parent.getChildrenIDs().indexOf(nodeID);
 
         BTreeNode leftSibling = childIndex > 0 ? tree.loadNodeByID(parent.getChildrenIDs().get(childIndex - 1)) : null;
@@ -178,13 +166,9 @@ public class BTreeNode {
 
         // Try to compensate with left sibling
         if (conditionLeftSibling) {
-            List<Integer> allKeys = new ArrayList<>(leftSibling.getKeys());
-            List<Integer> allLocations = new ArrayList<>(leftSibling.getLocations());
-            List<Integer> allChildren = leftSibling.getChildrenIDs().isEmpty() ?
-                    new ArrayList<>() : new ArrayList<>(leftSibling.getChildrenIDs());
-
-            int startSizeThis = childrenIDs.size();
-            int startSizeLeftSibling = leftSibling.getChildrenIDs().size();
+            IntList allKeys = new IntList(leftSibling.getKeys());
+            IntList allLocations = new IntList(leftSibling.getLocations());
+            IntList allChildren = new IntList(leftSibling.getChildrenIDs());
 
             allKeys.add(parent.getKeys().get(childIndex - 1));  // Add the parent key
             allLocations.add(parent.getLocations().get(childIndex - 1));
@@ -196,29 +180,21 @@ public class BTreeNode {
             int mid = allKeys.size() / 2;
 
             leftSibling.getKeys().clear();
-            leftSibling.getKeys().addAll(allKeys.subList(0, mid));
+            leftSibling.getKeys().addAll(allKeys, 0, mid);
             leftSibling.getLocations().clear();
-            leftSibling.getLocations().addAll(allLocations.subList(0, mid));
+            leftSibling.getLocations().addAll(allLocations, 0, mid);
             if (!allChildren.isEmpty()){
                 leftSibling.getChildrenIDs().clear();
-                leftSibling.getChildrenIDs().addAll(allChildren.subList(0, mid + 1));
-                if (startSizeLeftSibling < startSizeThis) {
-                    List<Integer> childrenToUpdate = new ArrayList<>(allChildren.subList(startSizeLeftSibling, mid + 1));
-                    updateParentIDs(childrenToUpdate, leftSibling.getNodeID());
-                }
+                leftSibling.getChildrenIDs().addAll(allChildren, 0, mid + 1);
             }
 
             keys.clear();
-            keys.addAll(allKeys.subList(mid + 1, allKeys.size()));
+            keys.addAll(allKeys, mid + 1, allKeys.size());
             locations.clear();
-            locations.addAll(allLocations.subList(mid + 1, allLocations.size()));
+            locations.addAll(allLocations, mid + 1, allLocations.size());
             if (!allChildren.isEmpty()){
                 childrenIDs.clear();
-                childrenIDs.addAll(allChildren.subList(mid + 1, allChildren.size()));
-                if (startSizeThis < startSizeLeftSibling) {
-                    List<Integer> childrenToUpdate = new ArrayList<>(allChildren.subList(mid + 1, allChildren.size() - startSizeThis));
-                    updateParentIDs(childrenToUpdate, nodeID);
-                }
+                childrenIDs.addAll(allChildren, mid + 1, allChildren.size());
             }
 
             // The parent gets the middle key
@@ -231,12 +207,9 @@ public class BTreeNode {
 
         // Try to compensate with right sibling
         else if (conditionRightSibling) {
-            List<Integer> allKeys = new ArrayList<>(keys);
-            List<Integer> allLocations = new ArrayList<>(locations);
-            List<Integer> allChildren = childrenIDs.isEmpty() ? new ArrayList<>() : new ArrayList<>(childrenIDs);
-
-            int startSizeThis = childrenIDs.size();
-            int startSizeRightSibling = rightSibling.getChildrenIDs().size();
+            IntList allKeys = new IntList(keys);
+            IntList allLocations = new IntList(locations);
+            IntList allChildren = new IntList(childrenIDs);
 
             allKeys.add(parent.getKeys().get(childIndex));  // Add the parent key
             allLocations.add(parent.getLocations().get(childIndex));
@@ -247,29 +220,21 @@ public class BTreeNode {
             int mid = allKeys.size() / 2;
 
             keys.clear();
-            keys.addAll(allKeys.subList(0, mid));
+            keys.addAll(allKeys, 0, mid);
             locations.clear();
-            locations.addAll(allLocations.subList(0, mid));
+            locations.addAll(allLocations, 0, mid);
             if (!allChildren.isEmpty()){
                 childrenIDs.clear();
-                childrenIDs.addAll(allChildren.subList(0, mid + 1));
-                if (startSizeThis < startSizeRightSibling) {
-                    List<Integer> childrenToUpdate = new ArrayList<>(allChildren.subList(startSizeThis, mid + 1));
-                    updateParentIDs(childrenToUpdate, nodeID);
-                }
+                childrenIDs.addAll(allChildren, 0, mid + 1);
             }
 
             rightSibling.getKeys().clear();
-            rightSibling.getKeys().addAll(allKeys.subList(mid + 1, allKeys.size()));
+            rightSibling.getKeys().addAll(allKeys, mid + 1, allKeys.size());
             rightSibling.getLocations().clear();
-            rightSibling.getLocations().addAll(allLocations.subList(mid + 1, allLocations.size()));
+            rightSibling.getLocations().addAll(allLocations, mid + 1, allLocations.size());
             if (!allChildren.isEmpty()){
                 rightSibling.getChildrenIDs().clear();
-                rightSibling.getChildrenIDs().addAll(allChildren.subList(mid + 1, allChildren.size()));
-                if (startSizeRightSibling < startSizeThis) {
-                    List<Integer> childrenToUpdate = new ArrayList<>(allChildren.subList(mid + 1, allChildren.size() - startSizeRightSibling));
-                    updateParentIDs(childrenToUpdate, rightSibling.getNodeID());
-                }
+                rightSibling.getChildrenIDs().addAll(allChildren, mid + 1, allChildren.size());
             }
 
             // The parent gets the middle key
@@ -283,14 +248,6 @@ public class BTreeNode {
         return false;
     }
 
-    public void updateParentIDs(List<Integer> childrenIDs, int parentID) {
-        for (int childID : childrenIDs) {
-            BTreeNode child = tree.loadNodeByID(childID);
-            child.setParentID(parentID);
-            saveNodes(child);
-        }
-    }
-
     private void saveNodes(BTreeNode... nodes) {
         for (BTreeNode node : nodes) {
             tree.writeNodeToMap(node);
@@ -300,13 +257,14 @@ public class BTreeNode {
 
 
     public int deleteNode(int key) {
-        int i = 0;
+        return deleteNode(key, new ArrayDeque<>());
+    }
+
+    private int deleteNode(int key, Deque<BTreeNode> path) {
         int result;
 
         // Find the key or determine the child to search
-        while (i < keys.size() && key > keys.get(i)) {
-            i++;
-        }
+        int i = lowerBound(key);
 
         // If the key is found, delete it
         if (i < keys.size() && keys.get(i) == key) {
@@ -320,17 +278,18 @@ public class BTreeNode {
                 nodeToCheckUnderflow = this;
             } else {
                 // Case 2: The key is in an internal node
+                path.push(this);
                 BTreeNode predecessorChild = tree.loadNodeByID(childrenIDs.get(i));
                 // BTreeNode successorChild = tree.loadNodeByID(childrenIDs.get(i + 1));
 
-                nodeToCheckUnderflow = replaceFromPredecessor(predecessorChild, i);
-                // nodeToCheckUnderflow = replaceFromSuccessor(successorChild, i);
+                nodeToCheckUnderflow = replaceFromPredecessor(predecessorChild, i, path);
+                // nodeToCheckUnderflow = replaceFromSuccessor(successorChild, i, path);
             }
 
             // check for underflow
             if (nodeToCheckUnderflow.getKeys().size() < d) {
-                if (!nodeToCheckUnderflow.compensate(false)){
-                    nodeToCheckUnderflow.merge();
+                if (!nodeToCheckUnderflow.compensate(false, path)){
+                    nodeToCheckUnderflow.merge(path);
                 }
             }
             return result;
@@ -343,19 +302,30 @@ public class BTreeNode {
 
             // Otherwise, search in the appropriate child
             BTreeNode child = tree.loadNodeByID(childrenIDs.get(i));
-            result = child.deleteNode(key);
+            path.push(this);
+            result = child.deleteNode(key, path);
         }
 
         return result;
     }
 
-    public Integer search(int key) {
-        int i = 0;
+    // Points the key at a new location; returns false if the key is not in this subtree
+    public boolean relocate(int key, int location) {
+        int i = lowerBound(key);
+        if (i < keys.size() && keys.get(i) == key) {
+            locations.set(i, location);
+            tree.addModifiedNode(this);
+            return true;
+        }
+        if (childrenIDs.isEmpty()) {
+            return false;
+        }
+        return tree.loadNodeByID(childrenIDs.get(i)).relocate(key, location);
+    }
 
+    public Integer search(int key) {
         // Find the key or determine the child to search
-        while (i < keys.size() && key > keys.get(i)) {
-            i++;
-        }
+        int i = lowerBound(key);
 
         // If the key is found, return its location
         if (i < keys.size() && keys.get(i) == key) {
@@ -372,22 +342,25 @@ public class BTreeNode {
         return child.search(key);
     }
 
-    private BTreeNode getPredecessor(BTreeNode node) {
+    // Descends to the leaf holding the largest key of the subtree, extending the path on the way
+    private BTreeNode getPredecessor(BTreeNode node, Deque<BTreeNode> path) {
         while (!node.getChildrenIDs().isEmpty()) {
+            path.push(node);
             node = tree.loadNodeByID(node.getChildrenIDs().get(node.getChildrenIDs().size() - 1));
         }
         return node;
     }
 
-    private BTreeNode getSuccessor(BTreeNode node) {
+    private BTreeNode getSuccessor(BTreeNode node, Deque<BTreeNode> path) {
         while (!node.getChildrenIDs().isEmpty()) {
+            path.push(node);
             node = tree.loadNodeByID(node.getChildrenIDs().get(0));
         }
         return node;
     }
 
-    private BTreeNode replaceFromPredecessor(BTreeNode predecessorChild, int i) {
-        BTreeNode predecessor = getPredecessor(predecessorChild);
+    private BTreeNode replaceFromPredecessor(BTreeNode predecessorChild, int i, Deque<BTreeNode> path) {
+        BTreeNode predecessor = getPredecessor(predecessorChild, path);
         int predecessorKey = predecessor.getKeys().get(predecessor.getKeys().size() - 1);
         int predecessorLocation = predecessor.getLocations().get(predecessor.getLocations().size() - 1);
         keys.set(i, predecessorKey);
@@ -400,8 +373,8 @@ public class BTreeNode {
         return predecessor;
     }
 
-    private BTreeNode replaceFromSuccessor(BTreeNode successorChild, int i){
-        BTreeNode successor = getSuccessor(successorChild);
+    private BTreeNode replaceFromSuccessor(BTreeNode successorChild, int i, Deque<BTreeNode> path){
+        BTreeNode successor = getSuccessor(successorChild, path);
         int successorKey = successor.getKeys().get(0);
         int successorLocation = successor.getLocations().get(0);
         keys.set(i, successorKey);
@@ -414,14 +387,11 @@ public class BTreeNode {
         return successor;
     }
 
-    public void merge() {
-        if (parentID == -1) {
+    public void merge(Deque<BTreeNode> path) {
+        if (path.isEmpty()) {
             if (keys.isEmpty()) {
                 if (childrenIDs.size() == 1) {
-                    BTreeNode child = tree.loadNodeByID(childrenIDs.get(0));
-                    child.setParentID(-1);
-                    tree.setRootID(child.getNodeID());
-                    saveNodes(child);
+                    tree.setRootID(childrenIDs.get(0));
                 }
                 tree.addDeletedNode(this);
                 tree.getModifiedNodes().remove(this);
@@ -429,7 +399,7 @@ public class BTreeNode {
             return;
         }
 
-        BTreeNode parent = tree.loadNodeByID(parentID);
+        BTreeNode parent = path.peek();
         int childIndex = parent.getChildrenIDs().indexOf(nodeID);
 
         // Determine left and right siblings
@@ -465,8 +435,9 @@ public class BTreeNode {
 
             // If parent is underflowing, handle it
             if (parent.getKeys().size() < d) {
-                if (!parent.compensate(false)) {
-                    parent.merge();
+                path.pop();
+                if (!parent.compensate(false, path)) {
+                    parent.merge(path);
                 }
             }
         } else if (rightSibling != null) {
@@ -489,7 +460,7 @@ public class BTreeNode {
             parent.getChildrenIDs().remove(childIndex + 1);
 
             tree.addDeletedNode(rightSibling);
-            tree.getModifiedNodes().remove(this);
+            tree.getModifiedNodes().remove(rightSibling);
             tree.deleteNodeFromMap(rightSibling);
 
             // Update tree
@@ -497,34 +468,53 @@ public class BTreeNode {
 
             // If parent is underflowing, handle it
             if (parent.getKeys().size() < d) {
-                if (!parent.compensate(false)) {
-                    parent.merge();
+                path.pop();
+                if (!parent.compensate(false, path)) {
+                    parent.merge(path);
                 }
             }
         }
     }
 
-    public int getNodeID() {
-        return nodeID;
+    // Index of the first key that is greater than or equal to the given key
+    public int lowerBound(int key) {
+        return KeySearch.lowerBound(keys.array(), keys.size(), key);
     }
 
-    public int getParentID() {
-        return parentID;
+    // Index of the first key that is greater than the given key
+    public int upperBound(int key) {
+        return KeySearch.upperBound(keys.array(), keys.size(), key);
     }
 
-    public void setParentID(int parentID) {
-        this.parentID = parentID;
+    public int getNodeID() {
+        return nodeID;
     }
 
-    public List<Integer> getKeys() {
+    public IntList getKeys() {
         return keys;
     }
 
-    public List<Integer> getLocations() {
+    public IntList getLocations() {
         return locations;
     }
 
-    public List<Integer> getChildrenIDs() {
+    public IntList getChildrenIDs() {
         return childrenIDs;
     }
+
+    public int getPrevLeafID() {
+        return prevLeafID;
+    }
+
+    public void setPrevLeafID(int prevLeafID) {
+        this.prevLeafID = prevLeafID;
+    }
+
+    public int getNextLeafID() {
+        return nextLeafID;
+    }
+
+    public void setNextLeafID(int nextLeafID) {
+        this.nextLeafID = nextLeafID;
+    }
 }
@@ -0,0 +1,181 @@
+package database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bounded cache of B-tree nodes kept across operations. Frames are evicted in LRU order;
+// pinned frames are never evicted and dirty frames are written back before they leave the pool.
+// The pool is shared by concurrent readers, so every method that touches the frames is synchronized.
+// Optimistic readers look nodes up with peek instead, which neither locks nor pins; a node that
+// leaves the pool is marked obsolete, so a reader still holding it notices when it validates.
+public class BufferPool {
+    private final int capacity;
+    private final DatabaseManager manager;
+    private final LinkedHashMap<Integer, Frame> frames;
+    private final ConcurrentHashMap<Integer, BTreeNode> resident = new ConcurrentHashMap<>(); // Same nodes as frames
+    private int hits = 0;
+    private int misses = 0;
+    private int evictions = 0;
+
+    private static class Frame {
+        private final BTreeNode node;
+        private int pinCount = 0;
+        private boolean dirty = false;
+
+        private Frame(BTreeNode node) {
+            this.node = node;
+        }
+    }
+
+    public BufferPool(int capacity, DatabaseManager manager) {
+        this.capacity = Math.max(1, capacity);
+        this.manager = manager;
+        this.frames = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized BTreeNode fetch(int nodeID) {
+        Frame frame = frames.get(nodeID);
+        if (frame != null) {
+            hits++;
+        } else {
+            misses++;
+            BTreeNode node = manager.loadNodeFromDisk(nodeID);
+            if (node == null) {
+                return null;
+            }
+            frame = new Frame(node);
+            frames.put(nodeID, frame);
+            resident.put(nodeID, node);
+        }
+
+        frame.pinCount++;
+        evictIfNeeded();
+        return frame.node;
+    }
+
+    // Registers a node created in memory; it starts pinned and dirty
+    public synchronized void add(BTreeNode node) {
+        Frame frame = new Frame(node);
+        frame.pinCount = 1;
+        frame.dirty = true;
+        Frame replaced = frames.put(node.getNodeID(), frame);
+        if (replaced != null) {
+            replaced.node.getLatch().markObsolete();
+        }
+        resident.put(node.getNodeID(), node);
+        evictIfNeeded();
+    }
+
+    public synchronized void unpin(int nodeID) {
+        Frame frame = frames.get(nodeID);
+        if (frame != null && frame.pinCount > 0) {
+            frame.pinCount--;
+        }
+        evictIfNeeded();
+    }
+
+    // Unpins the node only if it still occupies its frame; a reader may hold a node that has been
+    // removed from the tree meanwhile, and its ID may already belong to a new node
+    public synchronized void unpin(BTreeNode node) {
+        Frame frame = frames.get(node.getNodeID());
+        if (frame != null && frame.node == node && frame.pinCount > 0) {
+            frame.pinCount--;
+        }
+        evictIfNeeded();
+    }
+
+    public synchronized void markDirty(int nodeID) {
+        Frame frame = frames.get(nodeID);
+        if (frame != null) {
+            frame.dirty = true;
+        }
+    }
+
+    // Drops a node that was removed from the tree without writing it back
+    public synchronized void discard(int nodeID) {
+        Frame frame = frames.remove(nodeID);
+        if (frame != null) {
+            resident.remove(nodeID);
+            frame.node.getLatch().markObsolete();
+        }
+    }
+
+    // The node if it is in the pool, without pinning it or changing the LRU order
+    public BTreeNode peek(int nodeID) {
+        return resident.get(nodeID);
+    }
+
+    public synchronized void flush() {
+        for (Frame frame : frames.values()) {
+            if (frame.dirty) {
+                manager.writeNodeToDisk(frame.node);
+                frame.dirty = false;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Frame frame : frames.values()) {
+            frame.node.getLatch().markObsolete();
+        }
+        frames.clear();
+        resident.clear();
+    }
+
+    private void evictIfNeeded() {
+        if (frames.size() <= capacity) {
+            return;
+        }
+
+        // Iteration goes from the least to the most recently used frame
+        List<Frame> victims = new ArrayList<>();
+        int excess = frames.size() - capacity;
+        Iterator<Frame> iterator = frames.values().iterator();
+        while (iterator.hasNext() && victims.size() < excess) {
+            Frame frame = iterator.next();
+            if (frame.pinCount == 0) {
+                victims.add(frame);
+                iterator.remove();
+            }
+        }
+
+        // If every frame is pinned the pool temporarily grows past its capacity
+        for (Frame victim : victims) {
+            if (victim.dirty) {
+                manager.writeNodeToDisk(victim.node);
+            }
+            resident.remove(victim.node.getNodeID());
+            victim.node.getLatch().markObsolete();
+            evictions++;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getSize() {
+        return frames.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+}
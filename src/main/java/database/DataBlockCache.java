@@ -0,0 +1,275 @@
+package database;
+
+import memory.BlockOfMemory;
+import memory.Record;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// LRU cache of data blocks keyed by block number. Changes are collected in the cached block
+// and written to disk once, when the block is evicted or the cache is flushed.
+//
+// The log is redo only, so a block changed by the command in progress is not evicted until the command
+// has committed; until then the cache may grow past its capacity.
+//
+// A record changed while its block is not cached is kept on its own and written with a positioned
+// write at the next flush, so a single-record change does not load or write the whole block. If
+// the block is loaded before that, the pending records are copied into it.
+//
+// Concurrent readers look records up while the writer changes them, so the cache is synchronized
+// and single records are copied in and out under its lock. Cached blocks are only changed through
+// these methods, compaction included.
+public class DataBlockCache {
+    private final int capacity;
+    private final int recordsPerBlock;
+    private final DatabaseManager manager;
+    private final LinkedHashMap<Integer, CachedBlock> blocks;
+    private final TreeMap<Integer, Record> pendingRecords = new TreeMap<>(); // By location
+    private final List<CachedBlock> uncommittedBlocks = new ArrayList<>();
+    private final TreeSet<Integer> uncommittedRecords = new TreeSet<>(); // Pending locations of the command in progress
+    private int hits = 0;
+    private int misses = 0;
+
+    private static class CachedBlock {
+        private final int blockNumber;
+        private final BlockOfMemory block;
+        private boolean dirty = false;
+        private boolean uncommitted = false;
+
+        private CachedBlock(int blockNumber, BlockOfMemory block) {
+            this.blockNumber = blockNumber;
+            this.block = block;
+        }
+    }
+
+    public DataBlockCache(int capacity, DatabaseManager manager) {
+        this.capacity = Math.max(1, capacity);
+        this.recordsPerBlock = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        this.manager = manager;
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized BlockOfMemory get(int blockNumber) {
+        CachedBlock cached = blocks.get(blockNumber);
+        if (cached != null) {
+            hits++;
+            return cached.block;
+        }
+
+        misses++;
+        BlockOfMemory block = manager.loadDataBlockFromDisk(blockNumber);
+        SortedMap<Integer, Record> pending = pendingRecords.subMap(blockNumber * recordsPerBlock,
+                (blockNumber + 1) * recordsPerBlock);
+        if (block == null && pending.isEmpty()) {
+            return null;
+        }
+
+        CachedBlock loaded = new CachedBlock(blockNumber, block != null ? block : new BlockOfMemory());
+        if (!pending.isEmpty()) {
+            for (Map.Entry<Integer, Record> entry : pending.entrySet()) {
+                writeRecordToBlock(loaded.block, entry.getKey(), entry.getValue());
+            }
+            boolean uncommitted = !uncommittedRecords.subSet(blockNumber * recordsPerBlock,
+                    (blockNumber + 1) * recordsPerBlock).isEmpty();
+            pending.clear();
+            if (uncommitted) {
+                markChanged(loaded);
+            } else {
+                loaded.dirty = true;
+            }
+        }
+        put(loaded);
+        return loaded.block;
+    }
+
+    // Like get, but a block past the end of the data file starts out empty, for records appended to it
+    public synchronized BlockOfMemory getOrCreate(int blockNumber) {
+        BlockOfMemory block = get(blockNumber);
+        if (block == null) {
+            CachedBlock created = new CachedBlock(blockNumber, new BlockOfMemory());
+            put(created);
+            block = created.block;
+        }
+        return block;
+    }
+
+    // Returns the block only if it is cached, without loading it
+    private BlockOfMemory getIfCached(int blockNumber) {
+        CachedBlock cached = blocks.get(blockNumber);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.block;
+    }
+
+    // Returns the record if it is pending or its block is cached, otherwise null
+    public synchronized Record readRecord(int location) {
+        Record pending = pendingRecords.get(location);
+        if (pending != null) {
+            return pending;
+        }
+
+        BlockOfMemory block = getIfCached(location / recordsPerBlock);
+        if (block == null) {
+            return null;
+        }
+        int index = (location % recordsPerBlock) * Record.RECORD_SIZE;
+        return new Record(block.getInt(index), block.getInt(index + 4), block.getInt(index + 8), block.getInt(index + 12));
+    }
+
+    // Changes the record in its cached block, or keeps it pending; the caller has logged it already
+    public synchronized void writeRecord(int location, Record record) {
+        CachedBlock cached = blocks.get(location / recordsPerBlock);
+        if (cached != null) {
+            writeRecordToBlock(cached.block, location, record);
+            markChanged(cached);
+        } else {
+            putRecord(location, record);
+        }
+    }
+
+    // Keeps a record changed while its block is not cached. Too many pending records are written out,
+    // except those of the command in progress.
+    private void putRecord(int location, Record record) {
+        pendingRecords.put(location, record);
+        uncommittedRecords.add(location);
+        if (pendingRecords.size() > capacity * recordsPerBlock) {
+            writeCommittedRecords();
+        }
+    }
+
+    // Cuts a cached block down to its first records, for a data file that now ends inside it
+    public synchronized void truncateBlock(int blockNumber, int records) {
+        CachedBlock cached = blocks.get(blockNumber);
+        if (cached != null) {
+            cached.block.setSize(records * Record.RECORD_SIZE);
+            markChanged(cached);
+        }
+    }
+
+    public synchronized void markDirty(int blockNumber) {
+        CachedBlock cached = blocks.get(blockNumber);
+        if (cached != null) {
+            markChanged(cached);
+        }
+    }
+
+    // Called once the command's commit record is logged; its blocks may be evicted from now on. A
+    // command that changed more blocks than the cache holds, like a batch insert group, leaves the
+    // cache oversized, so it is brought back to its capacity here.
+    public synchronized void commit() {
+        for (CachedBlock cached : uncommittedBlocks) {
+            cached.uncommitted = false;
+        }
+        uncommittedBlocks.clear();
+        uncommittedRecords.clear();
+
+        evictIfNeeded(null);
+        if (pendingRecords.size() > capacity * recordsPerBlock) {
+            writeCommittedRecords();
+        }
+    }
+
+    private void markChanged(CachedBlock cached) {
+        cached.dirty = true;
+        if (!cached.uncommitted) {
+            cached.uncommitted = true;
+            uncommittedBlocks.add(cached);
+        }
+    }
+
+    private void writeCommittedRecords() {
+        Iterator<Map.Entry<Integer, Record>> iterator = pendingRecords.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Record> entry = iterator.next();
+            if (!uncommittedRecords.contains(entry.getKey())) {
+                manager.writeRecordToDisk(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    // Forgets a block that was removed from disk, without writing it back
+    public synchronized void discard(int blockNumber) {
+        blocks.remove(blockNumber);
+        pendingRecords.subMap(blockNumber * recordsPerBlock, (blockNumber + 1) * recordsPerBlock).clear();
+        uncommittedRecords.subSet(blockNumber * recordsPerBlock, (blockNumber + 1) * recordsPerBlock).clear();
+    }
+
+    public synchronized void flush() {
+        for (CachedBlock cached : blocks.values()) {
+            if (cached.dirty) {
+                manager.writeDataBlockToDisk(cached.blockNumber, cached.block);
+                cached.dirty = false;
+            }
+        }
+        writePendingRecords();
+    }
+
+    private void writePendingRecords() {
+        for (Map.Entry<Integer, Record> entry : pendingRecords.entrySet()) {
+            manager.writeRecordToDisk(entry.getKey(), entry.getValue());
+        }
+        pendingRecords.clear();
+    }
+
+    private void writeRecordToBlock(BlockOfMemory block, int location, Record record) {
+        int index = (location % recordsPerBlock) * Record.RECORD_SIZE;
+        block.putInt(index, record.getFirst());
+        block.putInt(index + 4, record.getSecond());
+        block.putInt(index + 8, record.getThird());
+        block.putInt(index + 12, record.getKey());
+        block.setSize(Math.max(block.getSize(), index + Record.RECORD_SIZE));
+    }
+
+    private void put(CachedBlock cached) {
+        blocks.put(cached.blockNumber, cached);
+        evictIfNeeded(cached);
+    }
+
+    // Evicts least recently used blocks until the cache is back at its capacity, as far as it holds
+    // blocks that may be evicted
+    private void evictIfNeeded(CachedBlock keep) {
+        if (blocks.size() <= capacity) {
+            return;
+        }
+
+        // The eldest entry is the least recently used block
+        List<CachedBlock> victims = new ArrayList<>();
+        Iterator<CachedBlock> iterator = blocks.values().iterator();
+        while (iterator.hasNext() && blocks.size() > capacity) {
+            CachedBlock victim = iterator.next();
+            if (victim != keep && !victim.uncommitted) {
+                victims.add(victim);
+                iterator.remove();
+            }
+        }
+
+        for (CachedBlock victim : victims) {
+            if (victim.dirty) {
+                manager.writeDataBlockToDisk(victim.blockNumber, victim.block);
+            }
+        }
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+    }
+}
@@ -0,0 +1,42 @@
+package database;
+
+import memory.Record;
+
+import java.io.IOException;
+import java.util.List;
+
+// The commands of a database, as used by the command processor. A DatabaseManager is one database
+// with one index; a PartitionedDatabase spreads the keys over several of them.
+public interface Database {
+    // True if there was no complete database to open, so the records have to be loaded
+    boolean isNewStore();
+
+    void loadRecordsAndSerializeIndex() throws IOException;
+
+    void search(int key);
+
+    // Returns the record with the key, or null, without printing anything
+    Record find(int key);
+
+    // Returns the records with the keys in the order of the keys, with null for a key that is not found
+    Record[] searchMany(int[] keys);
+
+    void rangeSearch(int lo, int hi, int limit);
+
+    void insert(Record record);
+
+    // Inserts many records at once; a key that is already taken keeps its record
+    void insertBatch(List<Record> records);
+
+    void updateRecord(int key, Record updatedRecord);
+
+    void delete(int key);
+
+    void compact(int maxBlocks);
+
+    void printDataBlock(int blockNumber);
+
+    void printBTree();
+
+    void close();
+}
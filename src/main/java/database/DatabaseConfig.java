@@ -0,0 +1,129 @@
+package database;
+
+public class DatabaseConfig {
+    public static final int ORDER_FROM_PAGE_SIZE = 0;
+
+    private IndexType indexType = IndexType.BTREE;
+    private int order = 2;
+    private boolean memoryMapped = false;
+    private int bufferPoolFrames = 256;
+    private int dataCacheBlocks = 64;
+    private double fillFactor = 0.75;
+    private int sortBufferBlocks = 64;
+    private int groupCommitWindowMillis = 10;
+    private int checkpointLogBlocks = 1024;
+    private SlotPolicy slotPolicy = SlotPolicy.FIRST_FIT;
+    private boolean concurrent = false;
+    private int partitions = 1;
+    private PartitionScheme partitionScheme = PartitionScheme.RANGE;
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    public void setIndexType(IndexType indexType) {
+        this.indexType = indexType;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    // ORDER_FROM_PAGE_SIZE picks the largest order whose nodes still fit in one page
+    public void setOrder(int order) {
+        this.order = order;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public int getBufferPoolFrames() {
+        return bufferPoolFrames;
+    }
+
+    public void setBufferPoolFrames(int bufferPoolFrames) {
+        this.bufferPoolFrames = bufferPoolFrames;
+    }
+
+    public int getDataCacheBlocks() {
+        return dataCacheBlocks;
+    }
+
+    public void setDataCacheBlocks(int dataCacheBlocks) {
+        this.dataCacheBlocks = dataCacheBlocks;
+    }
+
+    public double getFillFactor() {
+        return fillFactor;
+    }
+
+    public void setFillFactor(double fillFactor) {
+        this.fillFactor = fillFactor;
+    }
+
+    public int getSortBufferBlocks() {
+        return sortBufferBlocks;
+    }
+
+    public void setSortBufferBlocks(int sortBufferBlocks) {
+        this.sortBufferBlocks = sortBufferBlocks;
+    }
+
+    public int getGroupCommitWindowMillis() {
+        return groupCommitWindowMillis;
+    }
+
+    // 0 syncs the log inside every commit; otherwise commits share syncs, and a committer waits up to this
+    // long for a command that is still being logged
+    public void setGroupCommitWindowMillis(int groupCommitWindowMillis) {
+        this.groupCommitWindowMillis = groupCommitWindowMillis;
+    }
+
+    public int getCheckpointLogBlocks() {
+        return checkpointLogBlocks;
+    }
+
+    // A checkpoint is taken once the log has grown past this many blocks
+    public void setCheckpointLogBlocks(int checkpointLogBlocks) {
+        this.checkpointLogBlocks = checkpointLogBlocks;
+    }
+
+    public SlotPolicy getSlotPolicy() {
+        return slotPolicy;
+    }
+
+    public void setSlotPolicy(SlotPolicy slotPolicy) {
+        this.slotPolicy = slotPolicy;
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    // Lets lookups run in parallel from several threads, with latches on the index nodes
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    // More than one splits the keys over that many independent indexes, see PartitionedDatabase
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public PartitionScheme getPartitionScheme() {
+        return partitionScheme;
+    }
+
+    public void setPartitionScheme(PartitionScheme partitionScheme) {
+        this.partitionScheme = partitionScheme;
+    }
+}
@@ -1,365 +1,1221 @@
 package database;
 
 import java.io.*;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import memory.*;
 
 
-public class DatabaseManager {
+public class DatabaseManager implements Database {
+    private static final int FREE_PAGE_MARKER = -2; // Stored where a node page holds its ID
+    private static final int FIND_ATTEMPTS = 8;
+    private static final int BATCH_GROUP_SIZE = 1024; // Records per logged command of a batch insert
+
     private final RAM ram;
+    private final BufferPool bufferPool;
+    private final DataBlockCache dataBlockCache;
     private final BTree bTree;
     private final File dataDirectory;
     private final File BTreeDirectory;
+    private final PageFile indexFile;
+    private final PageFile dataFile;
+    private final WriteAheadLog log;
+    private final FreeSlotMap freeSlots;
+    private boolean freeSlotsLoaded = false;
+    private Superblock superblock;
+    private final DatabaseConfig config;
     private int location = 0;
+    private boolean newStore;
+    // Set once a page could not be written in place. The log then holds the only copy of the page, so no
+    // checkpoint cuts it off any more; the next open replays it.
+    private boolean pageWriteFailed = false;
+    private long unsyncedCommit = 0; // The last commit of the current writer, awaited once its locks are released
+    // Commands share the structure lock, which range scans, compaction and printing take exclusively;
+    // concurrent lookups through find take no lock at all. Without concurrent mode every command
+    // takes it exclusively.
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+    private final ReentrantLock writerLock = new ReentrantLock(); // One insert, update or delete at a time
 
     public DatabaseManager(String dataDirectory, String BTreeDirectory) throws IOException {
+        this(dataDirectory, BTreeDirectory, new DatabaseConfig());
+    }
+
+    public DatabaseManager(String dataDirectory, String BTreeDirectory, DatabaseConfig config) throws IOException {
         ram = new RAM();
-        bTree = new BTree(2, this);
+        this.config = config;
+        int d = resolveOrder();
+        bufferPool = new BufferPool(config.getBufferPoolFrames(), this);
+        dataBlockCache = new DataBlockCache(config.getDataCacheBlocks(), this);
+        bTree = config.getIndexType() == IndexType.BPLUS_TREE ? new BPlusTree(d, bufferPool) : new BTree(d, bufferPool);
         this.dataDirectory = new File(dataDirectory);
         this.BTreeDirectory = new File(BTreeDirectory);
+        this.indexFile = new PageFile(BTreeDirectory + "\\btree.idx", BlockOfMemory.BUFFER_SIZE,
+                config.isMemoryMapped());
+        this.dataFile = new PageFile(dataDirectory + "\\data.dat", BlockOfMemory.BUFFER_SIZE, config.isMemoryMapped());
+        this.log = new WriteAheadLog(BTreeDirectory + "\\wal.log", config.getGroupCommitWindowMillis());
+        this.freeSlots = new FreeSlotMap(BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE, config.getSlotPolicy());
+        openSuperblock();
+        if (!newStore) {
+            recover();
+        }
+        bTree.setLatching(config.isConcurrent());
+    }
+
+    private int resolveOrder() {
+        int pageSize = BlockOfMemory.BUFFER_SIZE;
+        int maxOrder = config.getIndexType() == IndexType.BPLUS_TREE ?
+                BPlusTree.maxOrder(pageSize) : BTree.maxOrder(pageSize);
+
+        if (config.getOrder() == DatabaseConfig.ORDER_FROM_PAGE_SIZE) {
+            return maxOrder;
+        }
+        if (config.getOrder() < 1 || config.getOrder() > maxOrder) {
+            throw new IllegalArgumentException("Order " + config.getOrder() + " does not fit in a page of " +
+                    pageSize + " bytes; the largest possible order is " + maxOrder + ".");
+        }
+        return config.getOrder();
+    }
+
+    // Pages 0 and 1 of the index file hold the superblock copies; node n is stored in page n + 2
+    private void openSuperblock() throws IOException {
+        superblock = null;
+        for (int slot = 0; slot < Superblock.SLOTS; slot++) {
+            if (!indexFile.containsPage(slot)) {
+                continue;
+            }
+            Superblock candidate = Superblock.readFrom(ram.loadPageFromBTree(indexFile, slot));
+            if (candidate != null && (superblock == null || candidate.getSequence() > superblock.getSequence())) {
+                superblock = candidate;
+            }
+        }
+
+        // The superblock is first written by the checkpoint that ends the initial load
+        newStore = superblock == null;
+        if (newStore) {
+            superblock = new Superblock(BlockOfMemory.BUFFER_SIZE, config.getIndexType(), bTree.getD());
+            indexFile.setPageCount(0);
+            dataFile.setPageCount(0);
+            return;
+        }
+
+        if (superblock.getPageSize() != BlockOfMemory.BUFFER_SIZE) {
+            throw new IOException("Index file uses pages of " + superblock.getPageSize() + " bytes, expected " +
+                    BlockOfMemory.BUFFER_SIZE + ".");
+        }
+        if (superblock.getIndexType() != config.getIndexType() || superblock.getOrder() != bTree.getD()) {
+            throw new IOException("Index was built as " + superblock.getIndexType() + " of order " +
+                    superblock.getOrder() + ", but the database is configured as " + config.getIndexType() +
+                    " of order " + bTree.getD() + ".");
+        }
+
+        bTree.setRootID(superblock.getRootID());
+        bTree.setNodeIDCounter(superblock.getNextNodeID());
+        location = superblock.getNextLocation();
+        loadFreePages();
+        freeSlotsLoaded = loadFreeSlots();
+    }
+
+    private void loadFreePages() {
+        FreePageList freePages = bTree.getFreePages();
+        freePages.setReader(this::readFreePageLink);
+        freePages.load(superblock.getFreePageHead(), superblock.getFreePageCount());
+    }
+
+    private int readFreePageLink(int nodeID) {
+        BlockOfMemory page = ram.loadPageFromBTree(indexFile, nodePage(nodeID));
+        if (page == null || page.getInt(0) != FREE_PAGE_MARKER) {
+            System.out.println(ColorCode.RED + "Free page list is broken at node page " + nodeID +
+                    "; the rest of the list is dropped." + ColorCode.RESET);
+            return -1;
+        }
+        return page.getInt(4);
+    }
+
+    // Links the pages released since the last checkpoint into the on-disk free page chain
+    private void writeFreePages() throws IOException {
+        FreePageList freePages = bTree.getFreePages();
+        for (int i = 0; i < freePages.getUnwrittenCount(); i++) {
+            BlockOfMemory block = new BlockOfMemory();
+            block.putInt(0, FREE_PAGE_MARKER);
+            block.putInt(4, freePages.getUnwrittenLink(i));
+            block.setSize(8);
+            ram.writeBtreePageToDisk(indexFile, nodePage(freePages.getUnwritten(i)), block);
+        }
+        freePages.markPersisted();
+    }
+
+    // The free slot map is saved next to the superblock copy it belongs to, so it is never newer than the
+    // superblock that is read on open
+    private String freeSlotsFilename(int slot) {
+        return BTreeDirectory.getPath() + "\\free_slots_" + slot + ".map";
     }
 
+    private boolean loadFreeSlots() {
+        File file = new File(freeSlotsFilename(superblock.getSlot()));
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return freeSlots.readFrom(input, superblock.getFreeSlotCount());
+        } catch (IOException e) {
+            freeSlots.clear();
+            return false;
+        }
+    }
+
+    private void writeFreeSlots(int slot) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(freeSlotsFilename(slot))) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+            freeSlots.writeTo(output);
+            output.flush();
+            file.getFD().sync();
+        }
+    }
+
+    // Marks the slots of a data block that hold no record as free; slots past the block's end count as free
+    private void scanFreeSlots(int blockNumber, BlockOfMemory block) {
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        for (int i = 0; i < b && blockNumber * b + i < location; i++) {
+            int index = i * Record.RECORD_SIZE;
+            boolean free = index + Record.RECORD_SIZE > block.getSize() || block.getInt(index + 12) == 0;
+            if (free) {
+                freeSlots.release(blockNumber * b + i);
+            } else {
+                freeSlots.markUsed(blockNumber * b + i);
+            }
+        }
+    }
+
+    private void rebuildFreeSlots() {
+        System.out.println("Free slot map is missing or stale; rebuilding it from the data blocks.");
+        freeSlots.clear();
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        for (int blockNumber = 0; blockNumber * b < location; blockNumber++) {
+            BlockOfMemory block = loadDataBlockFromDisk(blockNumber);
+            scanFreeSlots(blockNumber, block != null ? block : new BlockOfMemory());
+        }
+    }
+
+    // Written to the slot that does not hold the newest copy, so one intact copy always remains
+    private void writeSuperblock() throws IOException {
+        superblock.setRootID(bTree.getRootID());
+        superblock.setNextNodeID(bTree.getNodeIDCounter());
+        superblock.setNextLocation(location);
+        superblock.setFreePageHead(bTree.getFreePages().getHead());
+        superblock.setFreePageCount(bTree.getFreePages().size());
+        superblock.setFreeSlotCount(freeSlots.size());
+        superblock.setSequence(superblock.getSequence() + 1);
+        writeFreeSlots(superblock.getSlot());
+
+        BlockOfMemory block = new BlockOfMemory();
+        superblock.writeTo(block);
+        ram.writeBtreePageToDisk(indexFile, superblock.getSlot(), block);
+        indexFile.force();
+    }
+
+    // Replays the commands logged after the last checkpoint on top of the state in the superblock
+    private void recover() throws IOException {
+        Set<Integer> replayedDataBlocks = new HashSet<>();
+        int replayed = log.replay(superblock.getSequence(), new WriteAheadLog.Redo() {
+            @Override
+            public void page(int target, int pageID, BlockOfMemory image) throws IOException {
+                if (target == WriteAheadLog.TARGET_INDEX) {
+                    ram.writeBtreePageToDisk(indexFile, pageID, image);
+                } else if (image.getSize() == 0) {
+                    truncateDataFile(pageID);
+                    replayedDataBlocks.add(pageID);
+                } else {
+                    ram.writeDataBlockToDisk(dataFile, pageID, image);
+                    replayedDataBlocks.add(pageID);
+                }
+            }
+
+            @Override
+            public void record(int location, Record record) throws IOException {
+                ram.writeRecordToData(dataFile, location, record);
+                replayedDataBlocks.add(location / (BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE));
+            }
+
+            @Override
+            public void freePageChange(int change, int nextHead) {
+                bTree.getFreePages().redo(change, nextHead);
+            }
+
+            @Override
+            public void metadata(int[] metadata) {
+                bTree.setRootID(metadata[0]);
+                bTree.setNodeIDCounter(metadata[1]);
+                location = metadata[2];
+            }
+        });
+        if (log.getCheckpointSequence() < superblock.getSequence()) {
+            System.out.println("The log ends at a checkpoint older than the superblock; its commands are already " +
+                    "in the files and were not replayed.");
+        }
+
+        // The files' lengths follow from the node counter and the end of the data, not from their
+        // size on disk, which includes the zeroed tail of a mapping that was not closed
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        indexFile.setPageCount(nodePage(bTree.getNodeIDCounter()));
+        dataFile.setPageCount((location + b - 1) / b);
+
+        // Changes since the checkpoint show in the replayed data blocks and in the end of the data file
+        if (!freeSlotsLoaded) {
+            rebuildFreeSlots();
+        } else {
+            freeSlots.truncate(location);
+            for (int blockNumber : replayedDataBlocks) {
+                BlockOfMemory block = loadDataBlockFromDisk(blockNumber);
+                scanFreeSlots(blockNumber, block != null ? block : new BlockOfMemory());
+            }
+        }
+
+        System.out.println("Opened existing database: " + Math.max(replayed, 0) + " commands replayed from the log.");
+        checkpoint();
+        ram.resetStats();
+    }
+
+    // True if there was no complete database to open, so the records have to be loaded
+    @Override
+    public boolean isNewStore() {
+        return newStore;
+    }
+
+    private int nodePage(int nodeID) {
+        return nodeID + Superblock.SLOTS;
+    }
+
+    // Imports the text blocks written by the data generators into the binary data file and builds the
+    // index over them. The text blocks are removed once the database is complete.
+    @Override
     public void loadRecordsAndSerializeIndex() throws IOException {
+        ExternalSorter sorter = new ExternalSorter(ram, BTreeDirectory.getPath(), config.getSortBufferBlocks(), true);
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        dataFile.truncate(0);
+        BlockOfMemory outputBlock = new BlockOfMemory();
+
         int blockNumber = 0;
-        BlockOfMemory dataBlock;
-        while ((dataBlock = loadDataBlockFromDisk(blockNumber)) != null) {
+        BlockOfMemory textBlock;
+        while ((textBlock = loadTextBlock(blockNumber)) != null) {
             int index = 0;
 
-            while (index < dataBlock.getSize()) {
-                Record record = ram.readRecordFromBlock(dataBlock);
+            while (index < textBlock.getSize()) {
+                Record record = ram.readRecordFromBlock(textBlock);
                 if (record.getFirst() != -1) {
-                    int key = record.getKey();
                     int location = getNextLocation();
-                    bTree.insert(key, location);
+                    if (location % b == 0 && location > 0) {
+                        ram.writeDataBlockToDisk(dataFile, location / b - 1, outputBlock);
+                        outputBlock = new BlockOfMemory();
+                    }
+                    ram.writeRecordToBlock(outputBlock, record, (location % b) * Record.RECORD_SIZE);
+
+                    if (record.getKey() == 0) {
+                        freeSlots.release(location);
+                    } else {
+                        sorter.add(record.getKey(), location);
+                    }
                 }
-                dataBlock.setIndex(index + Record.RECORD_SIZE);
-                index = dataBlock.getIndex();
+                textBlock.setIndex(index + Record.RECORD_SIZE);
+                index = textBlock.getIndex();
             }
             blockNumber++;
         }
-
-        Map<Integer, BTreeNode> allNodes = bTree.getAllNodes(); // Assuming this now returns a map of nodeID -> BTreeNode
-        for (Map.Entry<Integer, BTreeNode> entry : allNodes.entrySet()) {
-            writeNodeToDisk(entry.getValue()); // Serialize each node to disk
+        if (location > 0) {
+            ram.writeDataBlockToDisk(dataFile, (location - 1) / b, outputBlock);
+        }
+        int textBlocks = blockNumber;
+
+        // Duplicate keys keep their first record, as inserting the records one by one would
+        ExternalSorter.SortedRun entries = sorter.finish();
+        System.out.println("External sort: " + sorter.getRunsGenerated() + " runs, " + sorter.getMergePasses() +
+                " merge passes, " + ram.getReadOperationsSort() + " block reads, " +
+                ram.getWriteOperationsSort() + " block writes.");
+
+        // Build the index bottom-up; every node is written once, when it leaves the buffer pool
+        bTree.bulkLoad(entries, (int) entries.size(), config.getFillFactor());
+        entries.close();
+        checkpoint();
+        for (blockNumber = 0; blockNumber < textBlocks; blockNumber++) {
+            new File(textBlockFilename(blockNumber)).delete();
         }
 
-        bTree.clearAllNodes();
-        bTree.clearModifiedNodes();
         ram.resetStats();
+        bufferPool.resetStats();
+        log.resetStats();
 
         System.out.println("End of serialization.");
     }
 
+    @Override
     public void search(int key) {
-        int locationNumber = bTree.search(key);
+        lockForLookup();
+        try {
+            int locationNumber = lookup(key);
 
-        if (locationNumber == -1) {
-            System.out.println(ColorCode.RED + "Record with key " + key + " not found." + ColorCode.RESET);
+            if (locationNumber == -1) {
+                System.out.println(ColorCode.RED + "Record with key " + key + " not found." + ColorCode.RESET);
+                printStats();
+                return;
+            }
+
+            int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+            int blockNumber = locationNumber / b;
+
+            Record record = readRecord(locationNumber);
+            int lineNumber = locationNumber % b + 1;
+
+            System.out.println(ColorCode.GREEN + "Record found on line " + lineNumber +
+                    " in block " + blockNumber +  ": " + record.toString() + ColorCode.RESET);
             printStats();
-            return;
+        } finally {
+            unlockForLookup();
         }
+    }
 
-        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
-        int blockNumber = locationNumber / b;
+    // Returns the record with the key, or null, without printing anything. In concurrent mode it
+    // can be called from any number of threads at once and takes no lock: the index is read
+    // optimistically, and the writer may move or delete the record between the index lookup and
+    // the read of the record, which shows in the record's key and makes the lookup start over.
+    // After a few attempts the lookup runs exclusively.
+    @Override
+    public Record find(int key) {
+        for (int attempt = 0; config.isConcurrent() && attempt < FIND_ATTEMPTS; attempt++) {
+            int locationNumber = lookup(key);
+            if (locationNumber == -1) {
+                return null;
+            }
+            Record record = readRecord(locationNumber);
+            if (record.getKey() == key) {
+                return record;
+            }
+        }
+
+        structureLock.writeLock().lock();
+        try {
+            int locationNumber = lookup(key);
+            return locationNumber == -1 ? null : readRecord(locationNumber);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    // Looks many keys up at once. The keys are sorted and looked up in one walk over the index that
+    // shares the nodes of common paths (see BTree.searchSorted), and the records are read block by
+    // block, so a block holding several of them is read once. Reports the node visits and block
+    // reads this saved over separate lookups. Runs exclusively, like rangeSearch.
+    @Override
+    public Record[] searchMany(int[] keys) {
+        structureLock.writeLock().lock();
+        try {
+            int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+            int count = keys.length;
+
+            // (key, index) pairs, so the keys can be sorted and the records put back in request order
+            long[] byKey = new long[count];
+            for (int i = 0; i < count; i++) {
+                byKey[i] = KeyLocation.pack(keys[i], i);
+            }
+            Arrays.sort(byKey);
+            int[] sortedKeys = new int[count];
+            for (int i = 0; i < count; i++) {
+                sortedKeys[i] = KeyLocation.key(byKey[i]);
+            }
+
+            int[] locations = new int[count];
+            int[] pathLengths = new int[count];
+            int nodesVisited = bTree.searchSorted(sortedKeys, count, locations, pathLengths);
+            int separateNodeVisits = 0;
+            for (int pathLength : pathLengths) {
+                separateNodeVisits += pathLength;
+            }
 
-        DiskFile dataFile = new DiskFile(dataDirectory.getPath() + "\\block_" + blockNumber + ".txt");
-        BlockOfMemory block = ram.loadBlockFromData(dataFile);
+            // (location, index) pairs packed like (key, location) ones, so sorting orders them by location
+            long[] byLocation = new long[count];
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                if (locations[i] != -1) {
+                    byLocation[found++] = KeyLocation.pack(locations[i], KeyLocation.location(byKey[i]));
+                }
+            }
+            Arrays.sort(byLocation, 0, found);
+
+            // A block with several of the records is loaded into the cache once and they are read from
+            // there; a single record is read on its own
+            Record[] records = new Record[count];
+            int blocksRead = 0;
+            int i = 0;
+            while (i < found) {
+                int blockNumber = KeyLocation.key(byLocation[i]) / b;
+                int end = i;
+                while (end < found && KeyLocation.key(byLocation[end]) / b == blockNumber) {
+                    end++;
+                }
 
-        int index = (locationNumber % b) * Record.RECORD_SIZE;
-        block.setIndex(index);
+                if (end - i > 1) {
+                    dataBlockCache.get(blockNumber);
+                }
+                for (int j = i; j < end; j++) {
+                    records[KeyLocation.location(byLocation[j])] = readRecord(KeyLocation.key(byLocation[j]));
+                }
+                blocksRead++;
+                i = end;
+            }
 
-        Record record = ram.readRecordFromBlock(block);
-        int lineNumber = locationNumber % b + 1;
+            System.out.println(ColorCode.GREEN + "Found " + found + " of " + count + " keys." + ColorCode.RESET);
+            System.out.println("Index nodes visited: " + nodesVisited + ", saved " + (separateNodeVisits - nodesVisited) +
+                    " over separate lookups");
+            System.out.println("Data blocks read: " + blocksRead + ", saved " + (found - blocksRead) +
+                    " over separate lookups");
+            printStats();
+            return records;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
 
-        System.out.println(ColorCode.GREEN + "Record found on line " + lineNumber +
-                " in block " + blockNumber +  ": " + record.toString() + ColorCode.RESET);
+    // Concurrent lookups leave the working set of the writer alone
+    private int lookup(int key) {
+        if (bTree.isLatching()) {
+            return bTree.optimisticSearch(key);
+        }
+        int locationNumber = bTree.search(key);
         bTree.clearAllNodes();
-        printStats();
+        return locationNumber;
     }
 
-    public BTreeNode loadNodeFromDisk(int nodeID) {
-        File nodeFile = new File(BTreeDirectory.getPath() + "\\block_" + nodeID + ".txt");
+    private void lockForLookup() {
+        if (config.isConcurrent()) {
+            structureLock.readLock().lock();
+        } else {
+            structureLock.writeLock().lock();
+        }
+    }
 
-        if (!nodeFile.exists()) {
-            System.out.println("Error: Node file not found for nodeID: " + nodeID);
-            return null;
+    private void unlockForLookup() {
+        if (config.isConcurrent()) {
+            structureLock.readLock().unlock();
+        } else {
+            structureLock.writeLock().unlock();
         }
+    }
 
-        DiskFile file;
-        file = new DiskFile(nodeFile.getPath());
+    private void lockForChange() {
+        lockForLookup();
+        writerLock.lock();
+    }
 
-        BlockOfMemory block = ram.loadBlockFromBTree(file);
+    private void unlockForChange() {
+        long commit = takeUnsyncedCommit();
+        writerLock.unlock();
+        unlockForLookup();
+        awaitCommit(commit);
+    }
 
-        if (block == null) {
-            System.out.println("Error: Failed to load block from file for nodeID: " + nodeID);
-            return null;
+    // Called while the writer still holds its lock
+    private long takeUnsyncedCommit() {
+        long commit = unsyncedCommit;
+        unsyncedCommit = 0;
+        return commit;
+    }
+
+    // Streams the records with keys in [lo, hi] in key order; a limit of 0 or less means no limit
+    @Override
+    public void rangeSearch(int lo, int hi, int limit) {
+        structureLock.writeLock().lock();
+        try {
+            int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+            int found = 0;
+
+            IndexCursor cursor = bTree.openCursor(limit);
+            cursor.seek(lo);
+            while (cursor.next() && cursor.getKey() <= hi) {
+                int locationNumber = cursor.getLocation();
+                int blockNumber = locationNumber / b;
+                Record record = readRecord(locationNumber);
+
+                found++;
+                System.out.println(found + ". record: " + record + " (line " + (locationNumber % b + 1) +
+                        " in block " + blockNumber + ")");
+            }
+            cursor.close();
+
+            System.out.println(ColorCode.GREEN + "Found " + found + " records with keys in [" + lo + ", " + hi + "]." +
+                    ColorCode.RESET);
+            printStats();
+        } finally {
+            structureLock.writeLock().unlock();
         }
+    }
 
-        return ram.readNodeFromBlock(block, bTree);
+    // Opens a cursor over the records with keys from lo on, for range scans over several databases.
+    // Like rangeSearch it runs exclusively, until the cursor is closed.
+    public RecordCursor openRecordCursor(int lo, int limit) {
+        structureLock.writeLock().lock();
+        IndexCursor cursor = bTree.openCursor(limit);
+        cursor.seek(lo);
+        return new RecordCursor(this, cursor);
     }
 
-    public void writeNodeToDisk(BTreeNode node) {
-        File nodeFile = new File(BTreeDirectory.getPath() + "\\block_" + node.getNodeID() + ".txt");
+    void closeRecordCursor(IndexCursor cursor) {
+        cursor.close();
+        structureLock.writeLock().unlock();
+    }
 
-        // Check if the file exists, if not, create it
-        if (!nodeFile.exists()) {
-            try {
-                boolean created = nodeFile.createNewFile();
-                if (!created) {
-                    System.out.println("Failed to create file: " + nodeFile.getPath());
-                    return;
-                }
-            } catch (IOException e) {
-                System.out.println("Error while creating file: " + e.getMessage());
-                e.printStackTrace();
-                return;
-            }
+    public BTreeNode loadNodeFromDisk(int nodeID) {
+        if (!indexFile.containsPage(nodePage(nodeID))) {
+            System.out.println("Error: Node page not found for nodeID: " + nodeID);
+            return null;
         }
 
-        // Create a DiskFile object for the node file
-        DiskFile file;
-        file = new DiskFile(nodeFile.getPath());
+        BlockOfMemory block = ram.loadPageFromBTree(indexFile, nodePage(nodeID));
 
+        if (block == null) {
+            System.out.println("Error: Failed to load page from index file for nodeID: " + nodeID);
+            return null;
+        }
+
+        return ram.readNodeFromBlock(block, bTree);
+    }
+
+    public void writeNodeToDisk(BTreeNode node) {
+        syncLog();
         BlockOfMemory block = new BlockOfMemory();
 
         ram.writeNodeToBlock(block, node);
-        ram.writeBtreeBlockToDisk(file, block);
+        try {
+            ram.writeBtreePageToDisk(indexFile, nodePage(node.getNodeID()), block);
+        } catch (IOException e) {
+            pageWriteFailed("index page " + nodePage(node.getNodeID()), e);
+        }
     }
 
+    // Slots after the end of the data file are left out of the block's size
     public BlockOfMemory loadDataBlockFromDisk(int blockNumber) {
-        String path = dataDirectory.getPath() + "\\block_" + blockNumber + ".txt";
-        if (!new File(path).exists()) {
+        if (!dataFile.containsPage(blockNumber)) {
             return null;
         }
 
-        DiskFile dataFile = new DiskFile(path);
-
-        BlockOfMemory block = ram.loadBlockFromData(dataFile);
+        BlockOfMemory block = ram.loadBlockFromData(dataFile, blockNumber);
         if (block == null) {
             System.out.println("Error: Failed to load block from file.");
             return null;
         }
+
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        int records = Math.max(0, Math.min(b, location - blockNumber * b));
+        block.setSize(records * Record.RECORD_SIZE);
         return block;
     }
 
-    public void deleteNodeFromDisk(BTreeNode node) {
+    public void writeRecordToDisk(int location, Record record) {
+        syncLog();
         try {
-            File nodeFile = new File(BTreeDirectory.getPath() + "\\block_" + node.getNodeID() + ".txt");
-            if (nodeFile.exists()) {
-                if (nodeFile.delete()) {
-                    System.out.println("Node file " + node.getNodeID() + " deleted successfully.");
-                } else {
-                    System.out.println("Failed to delete node file " + node.getNodeID() + ".");
-                }
-            }
-        } catch (Exception e) {
-            System.out.println("Error while deleting node file: " + e.getMessage());
-            e.printStackTrace();
+            ram.writeRecordToData(dataFile, location, record);
+        } catch (IOException e) {
+            pageWriteFailed("record " + location, e);
+        }
+    }
+
+    // Reads one record from the cache if it has the record's block or a pending change of it,
+    // and otherwise with a positioned read of just the record
+    Record readRecord(int location) {
+        Record cached = dataBlockCache.readRecord(location);
+        return cached != null ? cached : ram.readRecordFromData(dataFile, location);
+    }
+
+    // Changes one record and logs only the record's bytes. A cached block is changed in place;
+    // otherwise the record waits in the cache for a positioned write.
+    private void writeRecord(int location, Record record) {
+        try {
+            log.logRecord(location, record);
+        } catch (IOException e) {
+            System.out.println("Error while writing to the log: " + e.getMessage());
         }
+
+        dataBlockCache.writeRecord(location, record);
     }
 
+    public void writeDataBlockToDisk(int blockNumber, BlockOfMemory block) {
+        syncLog();
+        try {
+            ram.writeDataBlockToDisk(dataFile, blockNumber, block);
+        } catch (IOException e) {
+            pageWriteFailed("data block " + blockNumber, e);
+        }
+    }
+
+    // The cache has already given up the page, so only the log still has its content
+    private void pageWriteFailed(String page, IOException e) {
+        System.out.println("Error while writing " + page + ": " + e.getMessage() +
+                "; the log is kept until the database is opened again.");
+        pageWriteFailed = true;
+    }
+
+    // Removed blocks are logged as empty images
+    private void truncateDataFile(int blocks) {
+        syncLog();
+        try {
+            dataFile.truncate(blocks);
+        } catch (IOException e) {
+            System.out.println("Error while truncating the data file: " + e.getMessage());
+        }
+    }
+
+    private String textBlockFilename(int blockNumber) {
+        return dataDirectory.getPath() + "\\block_" + blockNumber + ".txt";
+    }
+
+    private BlockOfMemory loadTextBlock(int blockNumber) {
+        String path = textBlockFilename(blockNumber);
+        if (!new File(path).exists()) {
+            return null;
+        }
+        return ram.loadBlockFromTextData(new DiskFile(path));
+    }
+
+    public void deleteNodeFromDisk(BTreeNode node) {
+        // The page stays in the index file and is reused by the next node that needs one
+        bTree.getFreePages().release(node.getNodeID());
+        System.out.println("Node page " + node.getNodeID() + " released.");
+    }
 
+    // Modified nodes are logged and stay in the buffer pool; they are written back when evicted or flushed
     public void writeModifiedNodes(BTree tree) {
         for (BTreeNode node : tree.getModifiedNodes()) {
-            writeNodeToDisk(node);
+            BlockOfMemory block = new BlockOfMemory();
+            ram.writeNodeToBlock(block, node);
+            try {
+                log.logPage(WriteAheadLog.TARGET_INDEX, nodePage(node.getNodeID()), block);
+            } catch (IOException e) {
+                System.out.println("Error while writing to the log: " + e.getMessage());
+            }
+            bufferPool.markDirty(node.getNodeID());
         }
         tree.clearModifiedNodes();
     }
 
+    private void writeModifiedDataBlock(int blockNumber, BlockOfMemory block) {
+        try {
+            log.logPage(WriteAheadLog.TARGET_DATA, blockNumber, block);
+        } catch (IOException e) {
+            System.out.println("Error while writing to the log: " + e.getMessage());
+        }
+        dataBlockCache.markDirty(blockNumber);
+    }
+
     public void deleteNodes(BTree tree) {
         for (BTreeNode node : tree.getDeletedNodes()) {
+            // Also drops it from the operation's working set, since its ID may be reused right away
+            tree.deleteNodeFromMap(node);
             deleteNodeFromDisk(node);
         }
         tree.clearDeletedNodes();
     }
 
+    // Writes the commit record of the current command. The command is durable once the writer has
+    // waited for the log sync in awaitCommit, which happens after it released its locks.
+    private void commit() {
+        try {
+            IntList freePageChanges = bTree.getFreePages().takeChanges();
+            for (int i = 0; i < freePageChanges.size(); i += 2) {
+                log.logFreePageChange(freePageChanges.get(i), freePageChanges.get(i + 1));
+            }
+            unsyncedCommit = log.commit(bTree.getRootID(), bTree.getNodeIDCounter(), location);
+        } catch (IOException e) {
+            System.out.println("Error while writing to the log: " + e.getMessage());
+            return;
+        }
+        dataBlockCache.commit();
 
+        if (log.getSize() >= (long) config.getCheckpointLogBlocks() * BlockOfMemory.BUFFER_SIZE) {
+            checkpoint();
+        }
+    }
+
+    // Writes all dirty pages in place, after which the log can start over. If any page could not be
+    // written the superblock and the log are left alone, so the log still covers that page.
+    private void checkpoint() {
+        bufferPool.flush();
+        dataBlockCache.flush();
+        if (pageWriteFailed) {
+            return;
+        }
+        try {
+            writeFreePages();
+            indexFile.force();
+            dataFile.force();
+            writeSuperblock();
+            log.checkpoint(superblock.getSequence());
+        } catch (IOException e) {
+            System.out.println("Error during checkpoint: " + e.getMessage());
+        }
+    }
 
+    // A page may only be written in place once the log records describing it are on disk
+    private void syncLog() {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            System.out.println("Error while syncing the log: " + e.getMessage());
+        }
+    }
+
+    // Waits until the writer's last command is on disk; commits of other writers that arrived in the
+    // meantime share the same sync
+    private void awaitCommit(long commit) {
+        if (commit == 0) {
+            return;
+        }
+        try {
+            log.awaitSync(commit);
+        } catch (IOException e) {
+            System.out.println("Error while syncing the log: " + e.getMessage());
+        }
+    }
+
+
+
+    @Override
     public void insert(Record record) {
-        int location = getNextLocation();
+        lockForChange();
+        try {
+            int location = chooseLocation();
+
+            int key = record.getKey();
+            boolean isInsertSuccessful = bTree.insert(key, location);
+            if (!isInsertSuccessful) {
+                System.out.println(ColorCode.RED + "Record with key " + record.getKey() +
+                        " already exists in the database." + ColorCode.RESET);
+                bTree.clearAllNodes();
+                ram.resetStats();
+                return;
+            }
+
+            takeLocation(location);
+            writeModifiedNodes(bTree);
+            writeRecordToFile(record, location);
+            commit();
 
-        int key = record.getKey();
-        boolean isInsertSuccessful = bTree.insert(key, location);
-        if (!isInsertSuccessful) {
-            System.out.println(ColorCode.RED + "Record with key " + record.getKey() +
-                    " already exists in the database." + ColorCode.RESET);
             bTree.clearAllNodes();
-            ram.resetStats();
-            return;
+            printStats();
+        } finally {
+            unlockForChange();
         }
+    }
 
-        writeModifiedNodes(bTree);
-        appendRecordToFile(record, location);
 
-        bTree.clearAllNodes();
-        printStats();
+    // Inserts the records in key order, a group at a time. Each group is one logged command: the index
+    // is descended once per leaf the keys go to (see BTree.insertSorted), every changed node is logged
+    // once, and the records are written block by block. A key that is already in the database, or
+    // earlier in the batch, keeps its first record. The groups keep the working set of the index small.
+    @Override
+    public void insertBatch(List<Record> records) {
+        lockForChange();
+        try {
+            // The sort is stable, so the first of the records with the same key goes first
+            Record[] sorted = records.toArray(new Record[0]);
+            Arrays.sort(sorted, Comparator.comparingInt(Record::getKey));
+
+            int inserted = 0;
+            int descents = 0;
+            int blocks = 0;
+            int groups = 0;
+            for (int start = 0; start < sorted.length; start += BATCH_GROUP_SIZE) {
+                int count = Math.min(BATCH_GROUP_SIZE, sorted.length - start);
+                int[] keys = new int[count];
+                int[] locations = new int[count];
+                for (int i = 0; i < count; i++) {
+                    keys[i] = sorted[start + i].getKey();
+                }
+
+                descents += bTree.insertSorted(keys, count, this::takeNextLocation, locations);
+                writeModifiedNodes(bTree);
+                blocks += writeBatchRecords(sorted, start, locations, count);
+                commit();
+                bTree.clearAllNodes();
+
+                for (int location : locations) {
+                    if (location != -1) {
+                        inserted++;
+                    }
+                }
+                groups++;
+            }
+
+            System.out.println(ColorCode.GREEN + "Inserted " + inserted + " of " + sorted.length + " records in " +
+                    groups + " commands; " + (sorted.length - inserted) + " keys already existed." + ColorCode.RESET);
+            System.out.println("Index descents: " + descents + ", data blocks written: " + blocks);
+            printStats();
+        } finally {
+            unlockForChange();
+        }
     }
 
+    private int takeNextLocation() {
+        int location = chooseLocation();
+        takeLocation(location);
+        return location;
+    }
 
-    private void appendRecordToFile(Record record, int location) {
-        int blockNumber = location / (BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE);
-        String blockPath = dataDirectory.getPath() + "\\block_" + blockNumber + ".txt";
-        File blockFile = new File(blockPath);
-        BlockOfMemory block;
+    // Writes the records of a batch group that got a location, in location order. A block that gets
+    // several of them is brought into the cache once, changed there and logged as one image, as the
+    // target blocks of a compaction are; a single record is written and logged on its own. The blocks
+    // stay cached until the group commits, even if there are more of them than the cache holds.
+    // Returns the number of blocks written.
+    private int writeBatchRecords(Record[] records, int start, int[] locations, int count) {
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
 
-        if (!blockFile.exists()) {
-            block = new BlockOfMemory();
-            try {
-                blockFile.createNewFile();
-            } catch (IOException e) {
-                System.out.println("Error while creating file: " + e.getMessage());
-                e.printStackTrace();
-                return;
+        // (location, index) pairs packed like (key, location) ones, so sorting orders them by location
+        long[] byLocation = new long[count];
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            if (locations[i] != -1) {
+                byLocation[written++] = KeyLocation.pack(locations[i], start + i);
             }
-        } else {
-            block = loadDataBlockFromDisk(blockNumber);
         }
+        Arrays.sort(byLocation, 0, written);
+
+        int blocks = 0;
+        int i = 0;
+        while (i < written) {
+            int blockNumber = KeyLocation.key(byLocation[i]) / b;
+            int end = i;
+            while (end < written && KeyLocation.key(byLocation[end]) / b == blockNumber) {
+                end++;
+            }
 
-        DiskFile dataFile = new DiskFile(blockPath);
-        ram.writeRecordToBlock(block, record);
-        ram.writeDataBlockToDisk(dataFile, block);
+            if (end - i == 1) {
+                writeRecord(KeyLocation.key(byLocation[i]), records[KeyLocation.location(byLocation[i])]);
+            } else {
+                BlockOfMemory block = dataBlockCache.getOrCreate(blockNumber);
+                for (int j = i; j < end; j++) {
+                    dataBlockCache.writeRecord(KeyLocation.key(byLocation[j]), records[KeyLocation.location(byLocation[j])]);
+                }
+                writeModifiedDataBlock(blockNumber, block);
+            }
+            blocks++;
+            i = end;
+        }
+        return blocks;
+    }
 
+    private void writeRecordToFile(Record record, int location) {
         int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        int blockNumber = location / b;
+        writeRecord(location, record);
+
         int lineNumber = location % b + 1;
         System.out.println(ColorCode.GREEN + "Record inserted successfully to line " + lineNumber +
                 " in block " + blockNumber +". Key: " + record.getKey() + ", Location: " + location + ColorCode.RESET);
     }
 
+    @Override
     public void updateRecord(int key, Record updatedRecord) {
-        // Search for the record in the B-Tree
-        int location = bTree.delete(key);
+        lockForChange();
+        try {
+            // The delete and the insert may change any part of the tree, so readers wait for the whole update
+            bTree.latchTree();
+
+            // Reject a new key that is taken before the index is changed, so a failed update leaves nothing behind
+            if (updatedRecord.getKey() != key && bTree.search(updatedRecord.getKey()) != -1) {
+                System.out.println(ColorCode.RED + "Record with key " + updatedRecord.getKey() +
+                        " already exists in the database." + ColorCode.RESET);
+                bTree.clearAllNodes();
+                printStats();
+                return;
+            }
 
-        if (location == -1) {
-            System.out.println(ColorCode.RED + "Record with key " + key + " not found. Update failed." + ColorCode.RESET);
-            bTree.clearAllNodes();
-            printStats();
-            return;
-        }
+            // Search for the record in the B-Tree
+            int location = bTree.delete(key);
 
-        writeModifiedNodes(bTree);
-        deleteNodes(bTree);
+            if (location == -1) {
+                System.out.println(ColorCode.RED + "Record with key " + key + " not found. Update failed." + ColorCode.RESET);
+                bTree.clearAllNodes();
+                printStats();
+                return;
+            }
 
-        boolean isInsertSuccessful = bTree.insert(updatedRecord.getKey(), location);
-        if (!isInsertSuccessful) {
-            System.out.println(ColorCode.RED + "Record with key " + updatedRecord.getKey() +
-                    " already exists in the database." + ColorCode.RESET);
-            bTree.clearAllNodes();
-            ram.resetStats();
-            return;
-        }
+            writeModifiedNodes(bTree);
+            deleteNodes(bTree);
 
-        writeModifiedNodes(bTree);
+            boolean isInsertSuccessful = bTree.insert(updatedRecord.getKey(), location);
+            if (!isInsertSuccessful) {
+                System.out.println(ColorCode.RED + "Record with key " + updatedRecord.getKey() +
+                        " already exists in the database." + ColorCode.RESET);
+                bTree.clearAllNodes();
+                ram.resetStats();
+                return;
+            }
 
-        // Calculate block and line details
-        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
-        int blockNumber = location / b;
-        int indexInBlock = (location % b) * Record.RECORD_SIZE;
+            writeModifiedNodes(bTree);
 
-        // Load the block containing the record
-        DiskFile dataFile = new DiskFile(dataDirectory.getPath() + "\\block_" + blockNumber + ".txt");
-        BlockOfMemory block = ram.loadBlockFromData(dataFile);
+            // Only the record itself is read and rewritten, not the block around it
+            Record existingRecord = readRecord(location);
 
-        if (block == null) {
-            System.out.println(ColorCode.RED + "Failed to load block " + blockNumber + ". Update failed." + ColorCode.RESET);
-            bTree.clearAllNodes();
-            return;
-        }
+            if (existingRecord.getKey() != key) {
+                System.out.println(ColorCode.RED + "Key mismatch in block. Update aborted." + ColorCode.RESET);
+                bTree.clearAllNodes();
+                return;
+            }
+
+            writeRecord(location, updatedRecord);
+            commit();
 
-        int size = block.getSize();
-        // Read the current record
-        block.setIndex(indexInBlock);
-        Record existingRecord = ram.readRecordFromBlock(block);
+            System.out.println(ColorCode.GREEN + "Record with key " + key + " successfully updated." + ColorCode.RESET);
 
-        if (existingRecord.getKey() != key) {
-            System.out.println(ColorCode.RED + "Key mismatch in block. Update aborted." + ColorCode.RESET);
             bTree.clearAllNodes();
-            return;
+            printStats();
+        } finally {
+            unlockForChange();
         }
+    }
 
-        block.setSize(indexInBlock);
-        ram.writeRecordToBlock(block, updatedRecord);
-        block.setIndex(0);
-        block.setSize(size);
-        ram.writeDataBlockToDisk(dataFile, block);
+    @Override
+    public void delete(int key){
+        lockForChange();
+        try {
+            int location = bTree.delete(key);
 
-        System.out.println(ColorCode.GREEN + "Record with key " + key + " successfully updated." + ColorCode.RESET);
+            if (location == -1) {
+                System.out.println(ColorCode.RED + "Record with key " + key + " not found." + ColorCode.RESET);
+                bTree.clearAllNodes();
+                bTree.clearModifiedNodes();
+                printStats();
+                return;
+            }
 
-        bTree.clearAllNodes();
-        printStats();
-    }
+            int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+            int blockNumber = location / b;
 
-    public void delete(int key){
-        int location = bTree.delete(key);
+            Record record = readRecord(location);
+            writeRecord(location, new Record(0, 0, 0, 0));
+            freeSlots.release(location);
+            int lineNumber = location % b + 1;
 
-        if (location == -1) {
-            System.out.println(ColorCode.RED + "Record with key " + key + " not found." + ColorCode.RESET);
+            writeModifiedNodes(bTree);
+            deleteNodes(bTree);
+            commit();
             bTree.clearAllNodes();
-            bTree.clearModifiedNodes();
+            System.out.println(ColorCode.GREEN + "Record with key " + key + " deleted from line " + lineNumber +
+                    " in block " + blockNumber + ": " + record.toString() + ColorCode.RESET);
             printStats();
-            return;
+        } finally {
+            unlockForChange();
         }
+    }
 
-        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
-        int blockNumber = location / b;
+    // One step of data file compaction: the records of up to maxBlocks blocks at the end of the data
+    // file are moved into the lowest free slots, and blocks left empty are removed. The moved keys
+    // are then pointed at their new locations in one pass over the index in key order. Each step
+    // is one logged command, so steps can be interleaved with other commands.
+    @Override
+    public void compact(int maxBlocks) {
+        structureLock.writeLock().lock();
+        try {
+            int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+            int blocksBefore = (location + b - 1) / b;
+            int capacity = Math.max(0, Math.min(maxBlocks, blocksBefore)) * b;
+            long[] moves = new long[capacity];
+            Record[] records = new Record[capacity];
+            int[] sources = new int[capacity];
+            int moved = 0;
+            int steps = 0;
+
+            trimDataFile();
+            while (steps < maxBlocks && location > 0) {
+                int tailBlock = (location - 1) / b;
+                int firstFree = freeSlots.findFirst();
+                if (firstFree == -1 || firstFree >= tailBlock * b) {
+                    break;
+                }
 
-        DiskFile dataFile = new DiskFile(dataDirectory.getPath() + "\\block_" + blockNumber + ".txt");
-        BlockOfMemory block = ram.loadBlockFromData(dataFile);
+                // The last records go first, so whatever does not fit stays at the front of the block.
+                // Records are read and changed through the cache, whose lock concurrent lookups take, so a
+                // lookup never sees a record half moved or half cleared.
+                dataBlockCache.get(tailBlock);
+                int firstMove = moved;
+                for (int from = location - 1; from >= tailBlock * b; from--) {
+                    int to = freeSlots.findFirst();
+                    if (to == -1 || to >= tailBlock * b) {
+                        break;
+                    }
+                    if (freeSlots.isFree(from)) {
+                        continue;
+                    }
+
+                    records[moved] = readRecord(from);
+                    sources[moved] = from;
+                    moves[moved] = KeyLocation.pack(records[moved].getKey(), to);
+                    freeSlots.markUsed(to);
+                    freeSlots.release(from);
+                    moved++;
+                }
 
-        int index = (location % b) * Record.RECORD_SIZE;
-        block.setIndex(index);
+                // Destinations were taken in ascending order, so each target block is changed and logged once
+                int i = firstMove;
+                while (i < moved) {
+                    int blockNumber = KeyLocation.location(moves[i]) / b;
+                    BlockOfMemory block = dataBlockCache.get(blockNumber);
+                    for (; i < moved && KeyLocation.location(moves[i]) / b == blockNumber; i++) {
+                        dataBlockCache.writeRecord(KeyLocation.location(moves[i]), records[i]);
+                    }
+                    writeModifiedDataBlock(blockNumber, block);
+                }
 
-        Record record = ram.readRecordFromBlock(block);
-        ram.deleteRecordFromBlock(index, block);
-        int lineNumber = location % b + 1;
-        ram.writeDataBlockToDisk(dataFile, block);
+                BlockOfMemory tail = dataBlockCache.get(tailBlock);
+                for (i = firstMove; i < moved; i++) {
+                    dataBlockCache.writeRecord(sources[i], new Record(0, 0, 0, 0));
+                }
+                writeModifiedDataBlock(tailBlock, tail);
+                trimDataFile();
+                steps++;
+            }
 
-        writeModifiedNodes(bTree);
-        deleteNodes(bTree);
-        bTree.clearAllNodes();
-        System.out.println(ColorCode.GREEN + "Record with key " + key + " deleted from line " + lineNumber +
-                " in block " + blockNumber + ": " + record.toString() + ColorCode.RESET);
-        printStats();
+            Arrays.sort(moves, 0, moved);
+            bTree.relocate(moves, moved);
+            writeModifiedNodes(bTree);
+
+            int blocksAfter = (location + b - 1) / b;
+            for (int blockNumber = blocksAfter; blockNumber < blocksBefore; blockNumber++) {
+                dataBlockCache.discard(blockNumber);
+                writeModifiedDataBlock(blockNumber, new BlockOfMemory());
+            }
+            commit();
+            if (blocksAfter < blocksBefore) {
+                truncateDataFile(blocksAfter);
+            }
+
+            bTree.clearAllNodes();
+            System.out.println(ColorCode.GREEN + "Compaction moved " + moved + " records and removed " +
+                    (blocksBefore - blocksAfter) + " blocks. Data file: " + blocksAfter + " blocks, " +
+                    freeSlots.size() + " free record slots left." + ColorCode.RESET);
+            printStats();
+        } finally {
+            long commit = takeUnsyncedCommit();
+            structureLock.writeLock().unlock();
+            awaitCommit(commit);
+        }
     }
 
-    public void printDataBlock(int blockNumber) {
-        BlockOfMemory block = loadDataBlockFromDisk(blockNumber);
-        if (block == null) {
-            System.out.println(ColorCode.RED + "Block " + blockNumber + " not found." + ColorCode.RESET);
+    // Moves the end of the data file back over free slots at its end
+    private void trimDataFile() {
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        int end = location;
+        while (end > 0 && freeSlots.isFree(end - 1)) {
+            end--;
+        }
+        if (end == location) {
             return;
         }
 
-        System.out.println(ColorCode.CYAN + "Block " + blockNumber + ":" + ColorCode.RESET);
-        int size = block.getSize();
-        int counter = 0;
-        for (int i = 0; i < size; i += Record.RECORD_SIZE) {
-            Record record = ram.readRecordFromBlock(block);
-            block.setIndex(i + Record.RECORD_SIZE);
-            if (record.getKey() == 0) {
-                continue;
+        location = end;
+        freeSlots.truncate(end);
+        if (end % b != 0) {
+            BlockOfMemory tail = dataBlockCache.get(end / b);
+            dataBlockCache.truncateBlock(end / b, end % b);
+            writeModifiedDataBlock(end / b, tail);
+        }
+    }
+
+    @Override
+    public void printDataBlock(int blockNumber) {
+        structureLock.writeLock().lock();
+        try {
+            BlockOfMemory block = dataBlockCache.get(blockNumber);
+            if (block == null) {
+                System.out.println(ColorCode.RED + "Block " + blockNumber + " not found." + ColorCode.RESET);
+                return;
             }
-            counter++;
-            System.out.println(counter + ". record: " + record);
+
+            System.out.println(ColorCode.CYAN + "Block " + blockNumber + ":" + ColorCode.RESET);
+            int size = block.getSize();
+            int counter = 0;
+            // Records are read by their offset; the read index of a cached block may be anywhere
+            for (int i = 0; i < size; i += Record.RECORD_SIZE) {
+                Record record = new Record(block.getInt(i), block.getInt(i + 4), block.getInt(i + 8),
+                        block.getInt(i + 12));
+                if (record.getKey() == 0) {
+                    continue;
+                }
+                counter++;
+                System.out.println(counter + ". record: " + record);
+            }
+        } finally {
+            structureLock.writeLock().unlock();
         }
     }
 
+    @Override
     public void printBTree() {
-        bTree.printTree();
-        bTree.clearAllNodes();
-        printStats();
+        structureLock.writeLock().lock();
+        try {
+            bTree.printTree();
+            bTree.clearAllNodes();
+            printStats();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 
     public int getNextLocation() {
         return location++;
     }
 
+    // The slot for the next record: a free one chosen by the slot policy, or a new one at the end of the data file
+    private int chooseLocation() {
+        int freeLocation = freeSlots.find();
+        return freeLocation != -1 ? freeLocation : location;
+    }
+
+    private void takeLocation(int chosen) {
+        if (chosen == location) {
+            location++;
+        }
+        freeSlots.take(chosen);
+    }
+
     public void printStats() {
         System.out.println(ColorCode.CYAN + "Statistics:" + ColorCode.RESET);
         System.out.println("Data read operations: " + ram.getReadOperationsData());
         System.out.println("Data write operations: " + ram.getWriteOperationsData());
         System.out.println("B-Tree read operations: " + ram.getReadOperationsBTree());
         System.out.println("B-Tree write operations: " + ram.getWriteOperationsBTree());
+        System.out.println("Buffer pool hits: " + bufferPool.getHits() + ", misses: " + bufferPool.getMisses() +
+                ", evictions: " + bufferPool.getEvictions());
+        System.out.println("Data cache hits: " + dataBlockCache.getHits() + ", misses: " + dataBlockCache.getMisses());
+        System.out.println("Index pages used: " + (bTree.getNodeIDCounter() - bTree.getFreePages().size()) +
+                ", free: " + bTree.getFreePages().size());
+        System.out.println("Free record slots: " + freeSlots.size() + " in " + freeSlots.getBlocksWithFreeSlots() +
+                " blocks");
+        System.out.println("Log bytes written: " + log.getAppendedBytes() + ", commits: " + log.getCommits() +
+                ", syncs: " + log.getSyncs());
         ram.resetStats();
+        bufferPool.resetStats();
+        dataBlockCache.resetStats();
+        log.resetStats();
+    }
+
+    @Override
+    public void close() {
+        structureLock.writeLock().lock();
+        try {
+            checkpoint();
+            try {
+                log.close();
+                indexFile.close();
+                dataFile.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing index file: " + e.getMessage());
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 
     public String getDataDirectory() {
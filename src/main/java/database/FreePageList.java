@@ -0,0 +1,126 @@
+package database;
+
+// Node IDs (and with them index pages) released by merges and root collapses. They are handed out
+// again before new IDs, the most recently released first.
+//
+// On disk the list is a chain through the free pages themselves, newest first, whose head and
+// length are kept in the superblock. A free page is not written between checkpoints, so the part
+// of the chain that has not been touched since the last checkpoint stays valid and is only read
+// when its entries are reused. Entries pushed since then are kept in memory, and a checkpoint
+// links them into the chain.
+public class FreePageList {
+    // Reads the link stored in a free page of the chain
+    public interface ChainReader {
+        int nextFreePage(int nodeID);
+    }
+
+    private final IntList freeIDs = new IntList(); // Entries above the unloaded chain; the last is the head
+    private final IntList changes = new IntList(); // Pairs of (change, head after it) not yet logged
+    private int persisted = 0; // Bottom entries of freeIDs whose chain link is already on disk
+    private int chainHead = -1; // Unloaded rest of the list, still linked on disk
+    private int chainLength = 0;
+    private ChainReader reader;
+
+    public void setReader(ChainReader reader) {
+        this.reader = reader;
+    }
+
+    // Returns a released node ID, or -1 if there is none
+    public int allocate() {
+        int nodeID = getHead();
+        if (nodeID == -1) {
+            return -1;
+        }
+
+        int nextHead = freeIDs.size() > 1 ? freeIDs.get(freeIDs.size() - 2) :
+                freeIDs.size() == 1 ? chainHead : reader.nextFreePage(nodeID);
+        record(reused(nodeID), nextHead);
+        return nodeID;
+    }
+
+    public void release(int nodeID) {
+        record(nodeID, nodeID);
+    }
+
+    // A change is a released node ID, or reused(nodeID) for an ID handed out again; nextHead is the
+    // head of the list after the change, which replay needs because the reused page was overwritten
+    public void apply(int change, int nextHead) {
+        if (change >= 0) {
+            freeIDs.add(change);
+        } else if (!freeIDs.isEmpty()) {
+            freeIDs.remove(freeIDs.size() - 1);
+            persisted = Math.min(persisted, freeIDs.size());
+        } else {
+            chainHead = nextHead;
+            chainLength = nextHead == -1 ? 0 : chainLength - 1;
+        }
+    }
+
+    // Applies a logged change during recovery. Replay is only correct on top of the superblock whose
+    // checkpoint starts the log, which WriteAheadLog.replay makes sure of; then every change applies
+    // exactly once. A change that does not fit the list anyway, a release of an ID that is already
+    // free or a reuse of an ID that is not the head, is skipped instead of duplicating an entry.
+    //
+    // Replayed node images may overwrite links that an interrupted checkpoint wrote into pages released
+    // after it. Those pages are only kept in memory after replay and the next checkpoint links them
+    // again; pages still in the unloaded chain were not written since the superblock's checkpoint.
+    public void redo(int change, int nextHead) {
+        boolean fits = change >= 0 ? !freeIDs.contains(change) && change != chainHead : getHead() == -change - 1;
+        if (fits) {
+            apply(change, nextHead);
+        }
+    }
+
+    public static int reused(int nodeID) {
+        return -nodeID - 1;
+    }
+
+    // Changes made since the last call, as (change, head after it) pairs in order, for the log
+    public IntList takeChanges() {
+        IntList taken = new IntList(changes);
+        changes.clear();
+        return taken;
+    }
+
+    // Starts from the chain described by the superblock
+    public void load(int head, int length) {
+        freeIDs.clear();
+        changes.clear();
+        persisted = 0;
+        chainHead = head;
+        chainLength = length;
+    }
+
+    public int getHead() {
+        return freeIDs.isEmpty() ? chainHead : freeIDs.get(freeIDs.size() - 1);
+    }
+
+    public int size() {
+        return freeIDs.size() + chainLength;
+    }
+
+    // Pages that have to be written at the next checkpoint, bottom first
+    public int getUnwrittenCount() {
+        return freeIDs.size() - persisted;
+    }
+
+    public int getUnwritten(int index) {
+        return freeIDs.get(persisted + index);
+    }
+
+    // The link an unwritten page has to store
+    public int getUnwrittenLink(int index) {
+        int position = persisted + index;
+        return position == 0 ? chainHead : freeIDs.get(position - 1);
+    }
+
+    public void markPersisted() {
+        persisted = freeIDs.size();
+    }
+
+    private void record(int change, int nextHead) {
+        apply(change, nextHead);
+        changes.add(change);
+        changes.add(nextHead);
+    }
+}
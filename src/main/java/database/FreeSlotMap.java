@@ -0,0 +1,148 @@
+package database;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+// Record slots freed by deletes, one bit per location, with the number of free slots of every
+// data block. Inserts fill these slots before new locations are appended to the data file.
+public class FreeSlotMap {
+    private final int slotsPerBlock;
+    private final SlotPolicy policy;
+    private final BitSet freeSlots = new BitSet();
+    private final IntList freeCounts = new IntList(); // Indexed by block number
+    private int freeSlotCount = 0;
+    private int currentBlock = -1;
+
+    public FreeSlotMap(int slotsPerBlock, SlotPolicy policy) {
+        this.slotsPerBlock = slotsPerBlock;
+        this.policy = policy;
+    }
+
+    // Returns the slot the next insert should use without taking it, or -1 if there is none
+    public int find() {
+        if (freeSlotCount == 0) {
+            return -1;
+        }
+        if (policy == SlotPolicy.FILL_CURRENT_BLOCK_FIRST && getFreeCount(currentBlock) > 0) {
+            return freeSlots.nextSetBit(currentBlock * slotsPerBlock);
+        }
+        return freeSlots.nextSetBit(0);
+    }
+
+    // The lowest free slot, whatever the policy
+    public int findFirst() {
+        return freeSlots.nextSetBit(0);
+    }
+
+    public void markUsed(int location) {
+        if (!freeSlots.get(location)) {
+            return;
+        }
+        freeSlots.clear(location);
+        int blockNumber = location / slotsPerBlock;
+        freeCounts.set(blockNumber, freeCounts.get(blockNumber) - 1);
+        freeSlotCount--;
+    }
+
+    // A record is stored at the location, whether it was a free slot or appended at the end of the data
+    // file; its block becomes the one the fill-current policy tries first
+    public void take(int location) {
+        markUsed(location);
+        currentBlock = location / slotsPerBlock;
+    }
+
+    public void release(int location) {
+        if (freeSlots.get(location)) {
+            return;
+        }
+        freeSlots.set(location);
+        int blockNumber = location / slotsPerBlock;
+        while (freeCounts.size() <= blockNumber) {
+            freeCounts.add(0);
+        }
+        freeCounts.set(blockNumber, freeCounts.get(blockNumber) + 1);
+        freeSlotCount++;
+    }
+
+    // Forgets the free slots at and after the end of the data file
+    public void truncate(int endLocation) {
+        for (int location = freeSlots.nextSetBit(endLocation); location >= 0;
+             location = freeSlots.nextSetBit(location + 1)) {
+            int blockNumber = location / slotsPerBlock;
+            freeCounts.set(blockNumber, freeCounts.get(blockNumber) - 1);
+            freeSlotCount--;
+        }
+        freeSlots.clear(endLocation, Math.max(endLocation, freeSlots.length()));
+
+        int blocks = (endLocation + slotsPerBlock - 1) / slotsPerBlock;
+        if (freeCounts.size() > blocks) {
+            freeCounts.removeRange(blocks, freeCounts.size());
+        }
+        if (currentBlock >= blocks) {
+            currentBlock = -1;
+        }
+    }
+
+    public boolean isFree(int location) {
+        return freeSlots.get(location);
+    }
+
+    public int getFreeCount(int blockNumber) {
+        return blockNumber >= 0 && blockNumber < freeCounts.size() ? freeCounts.get(blockNumber) : 0;
+    }
+
+    public int size() {
+        return freeSlotCount;
+    }
+
+    public int getBlocksWithFreeSlots() {
+        int blocks = 0;
+        for (int i = 0; i < freeCounts.size(); i++) {
+            if (freeCounts.get(i) > 0) {
+                blocks++;
+            }
+        }
+        return blocks;
+    }
+
+    public void clear() {
+        freeSlots.clear();
+        freeCounts.clear();
+        freeSlotCount = 0;
+        currentBlock = -1;
+    }
+
+    // The bitmap as [number of free slots][length in longs][longs]
+    public void writeTo(DataOutputStream output) throws IOException {
+        long[] words = freeSlots.toLongArray();
+        output.writeInt(freeSlotCount);
+        output.writeInt(words.length);
+        for (long word : words) {
+            output.writeLong(word);
+        }
+    }
+
+    // Returns false, leaving the map empty, if the input does not hold the expected number of free slots
+    public boolean readFrom(DataInputStream input, int expectedFreeSlots) throws IOException {
+        clear();
+        if (input.readInt() != expectedFreeSlots) {
+            return false;
+        }
+        long[] words = new long[input.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = input.readLong();
+        }
+
+        BitSet loaded = BitSet.valueOf(words);
+        for (int location = loaded.nextSetBit(0); location >= 0; location = loaded.nextSetBit(location + 1)) {
+            release(location);
+        }
+        if (freeSlotCount != expectedFreeSlots) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+}
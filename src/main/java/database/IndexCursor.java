@@ -0,0 +1,18 @@
+package database;
+
+// Iterates over the (key, location) pairs of an index in key order
+public interface IndexCursor {
+    // Positions the cursor just before the smallest key that is greater than or equal to the given key
+    void seek(int key);
+
+    void seekFirst();
+
+    boolean next();
+
+    int getKey();
+
+    int getLocation();
+
+    // Releases the nodes the cursor still holds
+    void close();
+}
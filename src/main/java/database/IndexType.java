@@ -0,0 +1,6 @@
+package database;
+
+public enum IndexType {
+    BTREE,
+    BPLUS_TREE
+}
@@ -0,0 +1,131 @@
+package database;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+// Growable list of primitive ints. Node keys, locations and child IDs are kept in these instead
+// of List<Integer>, so searching and shifting entries works on a plain int[] without boxing.
+public class IntList {
+    private int[] values;
+    private int size = 0;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int capacity) {
+        this.values = new int[Math.max(1, capacity)];
+    }
+
+    public IntList(IntList other) {
+        this.values = Arrays.copyOf(other.values, Math.max(1, other.size));
+        this.size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        Objects.checkIndex(index, size);
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        Objects.checkIndex(index, size);
+        values[index] = value;
+    }
+
+    public void add(int value) {
+        ensureCapacity(size + 1);
+        values[size++] = value;
+    }
+
+    public void add(int index, int value) {
+        Objects.checkIndex(index, size + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+    }
+
+    // Removes the value at the given index and returns it
+    public int remove(int index) {
+        Objects.checkIndex(index, size);
+        int value = values[index];
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return value;
+    }
+
+    public void addAll(IntList other) {
+        addAll(other, 0, other.size);
+    }
+
+    // Appends the values of other between from (inclusive) and to (exclusive)
+    public void addAll(IntList other, int from, int to) {
+        Objects.checkFromToIndex(from, to, other.size);
+        int count = to - from;
+        ensureCapacity(size + count);
+        System.arraycopy(other.values, from, values, size, count);
+        size += count;
+    }
+
+    public void removeRange(int from, int to) {
+        Objects.checkFromToIndex(from, to, size);
+        System.arraycopy(values, to, values, from, size - to);
+        size -= to - from;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int indexOf(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int value) {
+        return indexOf(value) >= 0;
+    }
+
+    public IntList copyOfRange(int from, int to) {
+        Objects.checkFromToIndex(from, to, size);
+        IntList copy = new IntList(to - from);
+        System.arraycopy(values, from, copy.values, 0, to - from);
+        copy.size = to - from;
+        return copy;
+    }
+
+    // Backing array for tight search loops; only the first size() values are valid
+    public int[] array() {
+        return values;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(values[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
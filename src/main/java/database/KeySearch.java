@@ -0,0 +1,68 @@
+package database;
+
+// Searches within the sorted keys of a node. Small nodes are scanned without branching on the
+// comparison result, larger ones are searched with binary search.
+public final class KeySearch {
+    // Up to this many keys a full scan beats binary search. benchmark.NodeSearchBenchmark puts the
+    // crossover between 32 and 40 keys; from 40 keys on binary search is as fast or faster.
+    public static final int LINEAR_SEARCH_MAX_KEYS = 32;
+
+    private KeySearch() {
+    }
+
+    // Index of the first key that is not smaller than the given key
+    public static int lowerBound(int[] keys, int size, int key) {
+        return size <= LINEAR_SEARCH_MAX_KEYS ? linearLowerBound(keys, size, key) : binaryLowerBound(keys, size, key);
+    }
+
+    // Index of the first key that is greater than the given key
+    public static int upperBound(int[] keys, int size, int key) {
+        return size <= LINEAR_SEARCH_MAX_KEYS ? linearUpperBound(keys, size, key) : binaryUpperBound(keys, size, key);
+    }
+
+    // Counts the smaller keys instead of stopping at the first larger one, so the loop has no
+    // data-dependent branch and the comparison compiles to a conditional set
+    public static int linearLowerBound(int[] keys, int size, int key) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += keys[i] < key ? 1 : 0;
+        }
+        return count;
+    }
+
+    public static int linearUpperBound(int[] keys, int size, int key) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += keys[i] <= key ? 1 : 0;
+        }
+        return count;
+    }
+
+    public static int binaryLowerBound(int[] keys, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public static int binaryUpperBound(int[] keys, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,70 @@
+package database;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Read/write latch of a node (or of the root pointer) that also carries a version for optimistic
+// readers. The writer sets the locked bit while it holds the latch, and releasing the latch moves the
+// version on if the node was changed. An optimistic reader notes the version, reads the node without
+// taking anything and then validates that the version is still the same; any change in between makes
+// it start over. A node that left the tree or the buffer pool is marked obsolete for good.
+public class OptimisticLatch {
+    private static final long LOCKED = 1;
+    private static final long OBSOLETE = 2;
+    private static final long STEP = 4;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long version = 0;
+    private boolean changed = false; // Only used by the writer holding the latch
+
+    public void readLock() {
+        lock.readLock().lock();
+    }
+
+    public boolean tryReadLock() {
+        return lock.readLock().tryLock();
+    }
+
+    public void readUnlock() {
+        lock.readLock().unlock();
+    }
+
+    public void writeLock() {
+        lock.writeLock().lock();
+        version = version | LOCKED;
+        // The node's fields must not be changed before readers can see the locked bit
+        VarHandle.fullFence();
+    }
+
+    public void writeUnlock() {
+        version = changed ? (version & ~LOCKED) + STEP : version & ~LOCKED;
+        changed = false;
+        lock.writeLock().unlock();
+    }
+
+    public boolean isWriteLockedByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread();
+    }
+
+    // Called by the writer for every change it makes under the latch
+    public void markChanged() {
+        changed = true;
+    }
+
+    public void markObsolete() {
+        version = version | OBSOLETE;
+    }
+
+    // The current version, or -1 if the node is being changed or gone, in which case the reader restarts
+    public long readVersion() {
+        long current = version;
+        return (current & (LOCKED | OBSOLETE)) == 0 ? current : -1;
+    }
+
+    // True if nothing changed since readVersion returned the version
+    public boolean validate(long readVersion) {
+        // Keeps the reads of the node from being moved past the second read of the version
+        VarHandle.acquireFence();
+        return readVersion != -1 && version == readVersion;
+    }
+}
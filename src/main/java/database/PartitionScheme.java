@@ -0,0 +1,7 @@
+package database;
+
+// How a partitioned database assigns keys to its partitions
+public enum PartitionScheme {
+    RANGE, // Equal slices of the non-negative keys, so a range scan only visits the partitions it overlaps
+    HASH // Hashed keys, which spreads clustered keys evenly but makes every range scan visit all partitions
+}
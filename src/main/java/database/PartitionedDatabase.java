@@ -0,0 +1,327 @@
+package database;
+
+import memory.BlockOfMemory;
+import memory.DiskFile;
+import memory.RAM;
+import memory.Record;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Splits the keys over several independent databases, each with its own root, index file, data file
+// and log in its own pair of directories. Commands on different partitions share nothing, so their
+// writers never wait for each other, and each partition checkpoints and recovers on its own.
+//
+// The number of partitions and the scheme are fixed when the database is created and kept in a
+// layout file; an existing database is always opened with its own layout.
+public class PartitionedDatabase implements Database {
+    private static final String LAYOUT_FILE = "\\partitions.layout";
+
+    private final DatabaseManager[] partitions;
+    private final PartitionScheme scheme;
+    private final String dataDirectory;
+
+    public PartitionedDatabase(String dataDirectory, String BTreeDirectory, DatabaseConfig config) throws IOException {
+        this.dataDirectory = dataDirectory;
+        int count = config.getPartitions();
+        PartitionScheme partitionScheme = config.getPartitionScheme();
+
+        File layout = new File(BTreeDirectory + LAYOUT_FILE);
+        if (layout.exists()) {
+            try (DataInputStream input = new DataInputStream(new FileInputStream(layout))) {
+                count = input.readInt();
+                partitionScheme = PartitionScheme.values()[input.readInt()];
+            }
+            if (count != config.getPartitions() || partitionScheme != config.getPartitionScheme()) {
+                System.out.println("Database is split into " + count + " partitions by " + partitionScheme +
+                        "; using that layout.");
+            }
+        } else {
+            try (DataOutputStream output = new DataOutputStream(new FileOutputStream(layout))) {
+                output.writeInt(count);
+                output.writeInt(partitionScheme.ordinal());
+            }
+        }
+        this.scheme = partitionScheme;
+
+        partitions = new DatabaseManager[count];
+        for (int p = 0; p < count; p++) {
+            String partitionDataDirectory = partitionDirectory(dataDirectory, p);
+            String partitionBTreeDirectory = partitionDirectory(BTreeDirectory, p);
+            new File(partitionDataDirectory).mkdirs();
+            new File(partitionBTreeDirectory).mkdirs();
+            partitions[p] = new DatabaseManager(partitionDataDirectory, partitionBTreeDirectory, config);
+        }
+    }
+
+    // True if the directory holds a partitioned database
+    public static boolean exists(String BTreeDirectory) {
+        return new File(BTreeDirectory + LAYOUT_FILE).exists();
+    }
+
+    private static String partitionDirectory(String directory, int partition) {
+        return directory + "\\partition_" + partition;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public PartitionScheme getScheme() {
+        return scheme;
+    }
+
+    public int partitionOf(int key) {
+        if (scheme == PartitionScheme.HASH) {
+            // Fibonacci hashing; the high bits of the product are well mixed even for consecutive keys
+            long hash = (key * 0x9E3779B9L) & 0xFFFFFFFFL;
+            return (int) ((hash * partitions.length) >>> 32);
+        }
+        // Negative keys fall into the first partition
+        return (int) ((long) Math.max(key, 0) * partitions.length >>> 31);
+    }
+
+    // A partition that was not complete makes the whole database new, since the records are loaded together
+    @Override
+    public boolean isNewStore() {
+        for (DatabaseManager partition : partitions) {
+            if (partition.isNewStore()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Distributes the text blocks written by the data generators over the partitions' data
+    // directories, in the same text format, and then lets every partition load its share
+    @Override
+    public void loadRecordsAndSerializeIndex() throws IOException {
+        RAM ram = new RAM();
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+        BufferedWriter[] writers = new BufferedWriter[partitions.length];
+        int[] blocks = new int[partitions.length];
+        int[] records = new int[partitions.length];
+
+        int blockNumber = 0;
+        File textFile;
+        while ((textFile = new File(dataDirectory + "\\block_" + blockNumber + ".txt")).exists()) {
+            BlockOfMemory textBlock = ram.loadBlockFromTextData(new DiskFile(textFile.getPath()));
+            int index = 0;
+            while (index < textBlock.getSize()) {
+                Record record = ram.readRecordFromBlock(textBlock);
+                // Records with key 0 only mark free slots, which mean nothing in another data file
+                if (record.getFirst() != -1 && record.getKey() != 0) {
+                    int p = partitionOf(record.getKey());
+                    if (records[p] % b == 0) {
+                        if (writers[p] != null) {
+                            writers[p].close();
+                        }
+                        writers[p] = new BufferedWriter(new FileWriter(partitionDirectory(dataDirectory, p) +
+                                "\\block_" + blocks[p] + ".txt"));
+                        blocks[p]++;
+                    }
+                    writers[p].write(record.getFirst() + " " + record.getSecond() + " " + record.getThird() + " " +
+                            record.getKey());
+                    writers[p].newLine();
+                    records[p]++;
+                }
+                textBlock.setIndex(index + Record.RECORD_SIZE);
+                index = textBlock.getIndex();
+            }
+            blockNumber++;
+        }
+        for (BufferedWriter writer : writers) {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+
+        for (int p = 0; p < partitions.length; p++) {
+            System.out.println("Partition " + p + ": " + records[p] + " records.");
+            partitions[p].loadRecordsAndSerializeIndex();
+        }
+        for (int i = 0; i < blockNumber; i++) {
+            new File(dataDirectory + "\\block_" + i + ".txt").delete();
+        }
+    }
+
+    @Override
+    public void search(int key) {
+        partitions[partitionOf(key)].search(key);
+    }
+
+    @Override
+    public Record find(int key) {
+        return partitions[partitionOf(key)].find(key);
+    }
+
+    // Every partition looks up its share of the keys at once
+    @Override
+    public Record[] searchMany(int[] keys) {
+        IntList[] indexes = new IntList[partitions.length];
+        for (int i = 0; i < keys.length; i++) {
+            int p = partitionOf(keys[i]);
+            if (indexes[p] == null) {
+                indexes[p] = new IntList();
+            }
+            indexes[p].add(i);
+        }
+
+        Record[] records = new Record[keys.length];
+        for (int p = 0; p < partitions.length; p++) {
+            if (indexes[p] == null) {
+                continue;
+            }
+            int[] partitionKeys = new int[indexes[p].size()];
+            for (int i = 0; i < partitionKeys.length; i++) {
+                partitionKeys[i] = keys[indexes[p].get(i)];
+            }
+
+            System.out.println(ColorCode.CYAN + "Partition " + p + ":" + ColorCode.RESET);
+            Record[] partitionRecords = partitions[p].searchMany(partitionKeys);
+            for (int i = 0; i < partitionRecords.length; i++) {
+                records[indexes[p].get(i)] = partitionRecords[i];
+            }
+        }
+        return records;
+    }
+
+    // Merges the partitions' cursors by key. With range partitioning only the partitions that overlap
+    // [lo, hi] are opened, and their keys do not interleave, so the merge takes them one after another.
+    @Override
+    public void rangeSearch(int lo, int hi, int limit) {
+        int first = scheme == PartitionScheme.RANGE ? partitionOf(lo) : 0;
+        int last = scheme == PartitionScheme.RANGE ? partitionOf(hi) : partitions.length - 1;
+        int b = BlockOfMemory.BUFFER_SIZE / Record.RECORD_SIZE;
+
+        // Cursors are opened in partition order, so concurrent scans lock the partitions in the same order
+        RecordCursor[] cursors = new RecordCursor[partitions.length];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> Integer.compare(cursors[x].getKey(), cursors[y].getKey()));
+        for (int p = first; p <= last; p++) {
+            cursors[p] = partitions[p].openRecordCursor(lo, limit);
+            if (cursors[p].next() && cursors[p].getKey() <= hi) {
+                queue.add(p);
+            }
+        }
+
+        int found = 0;
+        while (!queue.isEmpty() && (limit <= 0 || found < limit)) {
+            int p = queue.poll();
+            RecordCursor cursor = cursors[p];
+            int locationNumber = cursor.getLocation();
+
+            found++;
+            System.out.println(found + ". record: " + cursor.getRecord() + " (partition " + p + ", line " +
+                    (locationNumber % b + 1) + " in block " + locationNumber / b + ")");
+            if (cursor.next() && cursor.getKey() <= hi) {
+                queue.add(p);
+            }
+        }
+
+        for (int p = first; p <= last; p++) {
+            cursors[p].close();
+        }
+        System.out.println(ColorCode.GREEN + "Found " + found + " records with keys in [" + lo + ", " + hi + "] in " +
+                (last - first + 1) + " partitions." + ColorCode.RESET);
+        for (int p = first; p <= last; p++) {
+            System.out.println(ColorCode.CYAN + "Partition " + p + ":" + ColorCode.RESET);
+            partitions[p].printStats();
+        }
+    }
+
+    @Override
+    public void insert(Record record) {
+        partitions[partitionOf(record.getKey())].insert(record);
+    }
+
+    @Override
+    public void insertBatch(List<Record> records) {
+        List<List<Record>> batches = new ArrayList<>();
+        for (int p = 0; p < partitions.length; p++) {
+            batches.add(new ArrayList<>());
+        }
+        for (Record record : records) {
+            batches.get(partitionOf(record.getKey())).add(record);
+        }
+
+        for (int p = 0; p < partitions.length; p++) {
+            if (!batches.get(p).isEmpty()) {
+                System.out.println(ColorCode.CYAN + "Partition " + p + ":" + ColorCode.RESET);
+                partitions[p].insertBatch(batches.get(p));
+            }
+        }
+    }
+
+    // A record whose new key belongs to another partition is inserted there before it is deleted
+    // here, so a crash in between leaves it in both partitions rather than in none. The move is not
+    // atomic for concurrent commands on the same keys.
+    @Override
+    public void updateRecord(int key, Record updatedRecord) {
+        DatabaseManager source = partitions[partitionOf(key)];
+        DatabaseManager target = partitions[partitionOf(updatedRecord.getKey())];
+        if (source == target) {
+            source.updateRecord(key, updatedRecord);
+            return;
+        }
+
+        if (target.find(updatedRecord.getKey()) != null) {
+            System.out.println(ColorCode.RED + "Record with key " + updatedRecord.getKey() +
+                    " already exists in the database." + ColorCode.RESET);
+            return;
+        }
+        if (source.find(key) == null) {
+            System.out.println(ColorCode.RED + "Record with key " + key + " not found. Update failed." + ColorCode.RESET);
+            return;
+        }
+
+        target.insert(updatedRecord);
+        source.delete(key);
+        System.out.println(ColorCode.GREEN + "Record with key " + key + " successfully updated; it moved to partition " +
+                partitionOf(updatedRecord.getKey()) + "." + ColorCode.RESET);
+    }
+
+    @Override
+    public void delete(int key) {
+        partitions[partitionOf(key)].delete(key);
+    }
+
+    @Override
+    public void compact(int maxBlocks) {
+        for (int p = 0; p < partitions.length; p++) {
+            System.out.println(ColorCode.CYAN + "Partition " + p + ":" + ColorCode.RESET);
+            partitions[p].compact(maxBlocks);
+        }
+    }
+
+    @Override
+    public void printDataBlock(int blockNumber) {
+        for (int p = 0; p < partitions.length; p++) {
+            System.out.println(ColorCode.CYAN + "Partition " + p + ":" + ColorCode.RESET);
+            partitions[p].printDataBlock(blockNumber);
+        }
+    }
+
+    @Override
+    public void printBTree() {
+        for (int p = 0; p < partitions.length; p++) {
+            System.out.println(ColorCode.CYAN + "Partition " + p + ":" + ColorCode.RESET);
+            partitions[p].printBTree();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (DatabaseManager partition : partitions) {
+            partition.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package database;
+
+import memory.Record;
+
+// Iterates over the records of one database in key order, for range scans that combine several
+// databases. The database stays locked for other range scans and structural commands until the
+// cursor is closed.
+public class RecordCursor {
+    private final DatabaseManager manager;
+    private final IndexCursor cursor;
+    private Record record;
+
+    RecordCursor(DatabaseManager manager, IndexCursor cursor) {
+        this.manager = manager;
+        this.cursor = cursor;
+    }
+
+    public boolean next() {
+        if (!cursor.next()) {
+            record = null;
+            return false;
+        }
+        record = manager.readRecord(cursor.getLocation());
+        return true;
+    }
+
+    public int getKey() {
+        return cursor.getKey();
+    }
+
+    public int getLocation() {
+        return cursor.getLocation();
+    }
+
+    public Record getRecord() {
+        return record;
+    }
+
+    public void close() {
+        manager.closeRecordCursor(cursor);
+    }
+}
@@ -0,0 +1,7 @@
+package database;
+
+// Decides which free record slot an insert fills
+public enum SlotPolicy {
+    FIRST_FIT, // The lowest free slot in the data file
+    FILL_CURRENT_BLOCK_FIRST // Free slots of the block written last, then the lowest free slot
+}
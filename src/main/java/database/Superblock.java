@@ -0,0 +1,155 @@
+package database;
+
+import memory.BlockOfMemory;
+
+import java.util.zip.CRC32;
+
+// Describes the index file and the state of the database at the last checkpoint. Two copies are
+// kept in pages 0 and 1 and written alternately, so a write torn by a crash leaves the previous
+// copy intact; on open the valid copy with the higher sequence number wins.
+public class Superblock {
+    public static final int MAGIC = 0x42545245;
+    public static final int FORMAT_VERSION = 5;
+    public static final int SLOTS = 2;
+
+    private static final int FIELDS = 12; // Followed by the checksum
+
+    private int pageSize;
+    private IndexType indexType;
+    private int order;
+    private int rootID = -1;
+    private int nextNodeID = 0;
+    private int nextLocation = 0;
+    private int freePageHead = -1;
+    private int freePageCount = 0;
+    private int freeSlotCount = 0;
+    private int sequence = 0;
+
+    public Superblock(int pageSize, IndexType indexType, int order) {
+        this.pageSize = pageSize;
+        this.indexType = indexType;
+        this.order = order;
+    }
+
+    private Superblock() {
+    }
+
+    public int getSlot() {
+        return sequence % SLOTS;
+    }
+
+    public void writeTo(BlockOfMemory block) {
+        int[] fields = {MAGIC, FORMAT_VERSION, pageSize, indexType.ordinal(), order, rootID, nextNodeID,
+                nextLocation, freePageHead, freePageCount, freeSlotCount, sequence};
+        for (int i = 0; i < FIELDS; i++) {
+            block.putInt(i * 4, fields[i]);
+        }
+        block.putInt(FIELDS * 4, checksum(block));
+        block.setSize((FIELDS + 1) * 4);
+    }
+
+    // Returns null if the block does not hold an intact superblock of this format version
+    public static Superblock readFrom(BlockOfMemory block) {
+        if (block == null || block.getInt(0) != MAGIC || block.getInt(4) != FORMAT_VERSION ||
+                block.getInt(FIELDS * 4) != checksum(block)) {
+            return null;
+        }
+        int indexType = block.getInt(12);
+        if (indexType < 0 || indexType >= IndexType.values().length) {
+            return null;
+        }
+
+        Superblock superblock = new Superblock();
+        superblock.pageSize = block.getInt(8);
+        superblock.indexType = IndexType.values()[indexType];
+        superblock.order = block.getInt(16);
+        superblock.rootID = block.getInt(20);
+        superblock.nextNodeID = block.getInt(24);
+        superblock.nextLocation = block.getInt(28);
+        superblock.freePageHead = block.getInt(32);
+        superblock.freePageCount = block.getInt(36);
+        superblock.freeSlotCount = block.getInt(40);
+        superblock.sequence = block.getInt(44);
+        return superblock;
+    }
+
+    private static int checksum(BlockOfMemory block) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < FIELDS; i++) {
+            int value = block.getInt(i * 4);
+            crc.update(value >>> 24);
+            crc.update(value >>> 16);
+            crc.update(value >>> 8);
+            crc.update(value);
+        }
+        return (int) crc.getValue();
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public int getRootID() {
+        return rootID;
+    }
+
+    public void setRootID(int rootID) {
+        this.rootID = rootID;
+    }
+
+    public int getNextNodeID() {
+        return nextNodeID;
+    }
+
+    public void setNextNodeID(int nextNodeID) {
+        this.nextNodeID = nextNodeID;
+    }
+
+    public int getNextLocation() {
+        return nextLocation;
+    }
+
+    public void setNextLocation(int nextLocation) {
+        this.nextLocation = nextLocation;
+    }
+
+    public int getFreePageHead() {
+        return freePageHead;
+    }
+
+    public void setFreePageHead(int freePageHead) {
+        this.freePageHead = freePageHead;
+    }
+
+    public int getFreePageCount() {
+        return freePageCount;
+    }
+
+    public void setFreePageCount(int freePageCount) {
+        this.freePageCount = freePageCount;
+    }
+
+    public int getFreeSlotCount() {
+        return freeSlotCount;
+    }
+
+    public void setFreeSlotCount(int freeSlotCount) {
+        this.freeSlotCount = freeSlotCount;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+}
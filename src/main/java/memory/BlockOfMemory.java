@@ -1,26 +1,42 @@
 package memory;
 
+import java.nio.ByteBuffer;
+
 public class BlockOfMemory {
     public static final int BUFFER_SIZE = 1600;
-    private final byte[] buffer;
+    private final ByteBuffer buffer;
     private int size; // Actual size of data in the block
     private int index = 0; // Index of the next record to be read
 
     public BlockOfMemory() {
-        this.buffer = new byte[BUFFER_SIZE];
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
         this.size = 0;
     }
 
     public BlockOfMemory(byte[] data, int size) {
-        this.buffer = new byte[BUFFER_SIZE];
-        System.arraycopy(data, 0, this.buffer, 0, BUFFER_SIZE);
+        // The block takes ownership of the array instead of copying it
+        this.buffer = ByteBuffer.wrap(data, 0, BUFFER_SIZE).slice();
+        this.size = size;
+    }
+
+    // Zero-copy view, e.g. over a region of a memory-mapped file
+    public BlockOfMemory(ByteBuffer view, int size) {
+        this.buffer = view;
         this.size = size;
     }
 
-    public byte[] getBuffer() {
+    public ByteBuffer getByteBuffer() {
         return buffer;
     }
 
+    public int getInt(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    public void putInt(int offset, int value) {
+        buffer.putInt(offset, value);
+    }
+
     public int getSize() {
         return size;
     }
@@ -0,0 +1,246 @@
+package memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+// Sorts packed (key, location) pairs that do not have to fit in memory. Pairs are collected in a
+// bounded number of block buffers, written out as sorted runs and merged k ways until one run is left.
+public class ExternalSorter {
+    private static final int ENTRIES_PER_BLOCK = BlockOfMemory.BUFFER_SIZE / KeyLocation.SIZE;
+
+    private final RAM ram;
+    private final String directory;
+    private final int bufferBlocks;
+    private final boolean distinctKeys;
+    private long[] buffer;
+    private int buffered = 0;
+    private List<Run> runs = new ArrayList<>();
+    private int nextRunID = 0;
+    private int runsGenerated = 0;
+    private int mergePasses = 0;
+
+    public ExternalSorter(RAM ram, String directory, int bufferBlocks, boolean distinctKeys) {
+        if (bufferBlocks < 3) {
+            throw new IllegalArgumentException("External sort needs at least 3 buffer blocks.");
+        }
+        this.ram = ram;
+        this.directory = directory;
+        this.bufferBlocks = bufferBlocks;
+        this.distinctKeys = distinctKeys;
+        this.buffer = new long[bufferBlocks * ENTRIES_PER_BLOCK];
+    }
+
+    public void add(int key, int location) throws IOException {
+        if (buffered == buffer.length) {
+            writeRun();
+        }
+        buffer[buffered++] = KeyLocation.pack(key, location);
+    }
+
+    // Ends run generation and merges the runs; one block per input run plus one output block are in use
+    public SortedRun finish() throws IOException {
+        if (buffered > 0 || runs.isEmpty()) {
+            writeRun();
+        }
+        buffer = null;
+
+        int fanIn = bufferBlocks - 1;
+        while (runs.size() > 1) {
+            List<Run> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                merged.add(merge(runs.subList(i, Math.min(i + fanIn, runs.size()))));
+            }
+            runs = merged;
+            mergePasses++;
+        }
+
+        return new SortedRun(runs.get(0));
+    }
+
+    public int getRunsGenerated() {
+        return runsGenerated;
+    }
+
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    private void writeRun() throws IOException {
+        Arrays.sort(buffer, 0, buffered);
+
+        RunWriter writer = new RunWriter();
+        for (int i = 0; i < buffered; i++) {
+            writer.write(buffer[i]);
+        }
+        runs.add(writer.finish());
+        runsGenerated++;
+        buffered = 0;
+    }
+
+    // Only the runs of one merge are open at a time; a reader closes its run once it is read
+    private Run merge(List<Run> inputs) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> Long.compare(a.current, b.current));
+        for (Run run : inputs) {
+            RunReader reader = new RunReader(run);
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+
+        RunWriter writer = new RunWriter();
+        while (!queue.isEmpty()) {
+            RunReader reader = queue.poll();
+            writer.write(reader.current);
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+
+        for (Run run : inputs) {
+            run.delete();
+        }
+        return writer.finish();
+    }
+
+    // A run file is closed once it is written, so thousands of runs do not hold thousands of open files
+    private static class Run {
+        private final String filename;
+        private final long size;
+
+        private Run(String filename, long size) {
+            this.filename = filename;
+            this.size = size;
+        }
+
+        private void delete() {
+            new File(filename).delete();
+        }
+    }
+
+    private class RunWriter {
+        private final PageFile file;
+        private final BlockOfMemory block = new BlockOfMemory();
+        private int blockNumber = 0;
+        private long size = 0;
+        private boolean hasLast = false;
+        private int lastKey;
+
+        private RunWriter() throws IOException {
+            this.file = new PageFile(directory + "\\sort_run_" + nextRunID++ + ".tmp", BlockOfMemory.BUFFER_SIZE);
+        }
+
+        private void write(long entry) {
+            int key = KeyLocation.key(entry);
+            if (distinctKeys && hasLast && key == lastKey) {
+                return; // Runs are sorted by key and then location, so the first occurrence is kept
+            }
+            hasLast = true;
+            lastKey = key;
+
+            int offset = block.getSize();
+            block.putInt(offset, key);
+            block.putInt(offset + 4, KeyLocation.location(entry));
+            block.setSize(offset + KeyLocation.SIZE);
+            size++;
+
+            if (block.getSize() == ENTRIES_PER_BLOCK * KeyLocation.SIZE) {
+                ram.writeRunBlockToDisk(file, blockNumber++, block);
+                block.setSize(0);
+            }
+        }
+
+        private Run finish() throws IOException {
+            if (block.getSize() > 0) {
+                ram.writeRunBlockToDisk(file, blockNumber, block);
+            }
+            file.close();
+            return new Run(file.getFilename(), size);
+        }
+    }
+
+    private class RunReader {
+        private final Run run;
+        private PageFile file;
+        private BlockOfMemory block;
+        private int blockNumber = -1;
+        private long position = 0;
+        private long current;
+
+        private RunReader(Run run) throws IOException {
+            this.run = run;
+            this.file = new PageFile(run.filename, BlockOfMemory.BUFFER_SIZE);
+        }
+
+        private boolean advance() throws IOException {
+            if (position == run.size) {
+                close();
+                return false;
+            }
+
+            int indexInBlock = (int) (position % ENTRIES_PER_BLOCK);
+            if (indexInBlock == 0) {
+                block = ram.loadBlockFromRun(file, ++blockNumber);
+            }
+
+            int offset = indexInBlock * KeyLocation.SIZE;
+            current = KeyLocation.pack(block.getInt(offset), block.getInt(offset + 4));
+            position++;
+            return true;
+        }
+
+        private void close() throws IOException {
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+
+    // The final run, read back as a stream of packed entries in key order
+    public class SortedRun implements PrimitiveIterator.OfLong {
+        private final Run run;
+        private final RunReader reader;
+        private boolean hasNext;
+
+        private SortedRun(Run run) throws IOException {
+            this.run = run;
+            this.reader = new RunReader(run);
+            this.hasNext = reader.advance();
+        }
+
+        public long size() {
+            return run.size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            long entry = reader.current;
+            try {
+                hasNext = reader.advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entry;
+        }
+
+        public void close() throws IOException {
+            reader.close();
+            run.delete();
+        }
+    }
+}
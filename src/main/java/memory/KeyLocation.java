@@ -0,0 +1,21 @@
+package memory;
+
+// A (key, location) pair packed into a single long, so that sorting the longs sorts the pairs by key
+public final class KeyLocation {
+    public static final int SIZE = 8;
+
+    private KeyLocation() {
+    }
+
+    public static long pack(int key, int location) {
+        return ((long) key << 32) | (location & 0xFFFFFFFFL);
+    }
+
+    public static int key(long entry) {
+        return (int) (entry >> 32);
+    }
+
+    public static int location(long entry) {
+        return (int) entry;
+    }
+}
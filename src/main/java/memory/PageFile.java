@@ -0,0 +1,203 @@
+package memory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// A single file split into fixed-size pages; page n starts at offset n * pageSize.
+public class PageFile extends DiskFile {
+    private static final int MIN_MAPPED_PAGES = 64;
+
+    private final int pageSize;
+    private final boolean memoryMapped;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer mapping; // Replaced when the file grows, while readers may use it
+    private volatile int pageCount; // Pages in use, which a mapped file may have more of on disk
+
+    public PageFile(String filename, int pageSize) throws IOException {
+        this(filename, pageSize, false);
+    }
+
+    public PageFile(String filename, int pageSize, boolean memoryMapped) throws IOException {
+        super(filename);
+        this.pageSize = pageSize;
+        this.memoryMapped = memoryMapped;
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        this.pageCount = (int) ((channel.size() + pageSize - 1) / pageSize);
+
+        if (memoryMapped) {
+            remap(Math.max(pageCount, MIN_MAPPED_PAGES));
+        }
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    // Sets the number of pages in use, as recorded by the owner of the file. A mapped file is extended
+    // in large steps and only cut back by close, so after a crash its size does not tell how many
+    // of its pages are in use.
+    public void setPageCount(int pages) throws IOException {
+        pageCount = pages;
+        if (!memoryMapped && channel.size() > (long) pages * pageSize) {
+            channel.truncate((long) pages * pageSize);
+        }
+    }
+
+    public boolean containsPage(int pageID) {
+        return pageID >= 0 && pageID < pageCount;
+    }
+
+    public void readPage(int pageID, BlockOfMemory block) throws IOException {
+        ByteBuffer target = block.getByteBuffer().duplicate();
+        target.clear().limit(pageSize);
+
+        if (memoryMapped) {
+            ensureMapped(pageID);
+            target.put(pageView(pageID));
+            return;
+        }
+
+        long position = (long) pageID * pageSize;
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                break;
+            }
+        }
+
+        // Pages past the end of the file read as zeros
+        while (target.hasRemaining()) {
+            target.put((byte) 0);
+        }
+    }
+
+    // Reads the bytes at a position of the file, e.g. a single record; the range may span pages
+    public void read(long position, ByteBuffer target) throws IOException {
+        if (memoryMapped) {
+            ensureMapped((int) ((position + target.remaining() - 1) / pageSize));
+            ByteBuffer view = mapping.duplicate();
+            view.position((int) position).limit((int) position + target.remaining());
+            target.put(view);
+            return;
+        }
+
+        int start = target.position();
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position() - start) < 0) {
+                break;
+            }
+        }
+        while (target.hasRemaining()) {
+            target.put((byte) 0);
+        }
+    }
+
+    public void write(long position, ByteBuffer source) throws IOException {
+        long end = position + source.remaining();
+        if (memoryMapped) {
+            ensureMapped((int) ((end - 1) / pageSize));
+            ByteBuffer view = mapping.duplicate();
+            view.position((int) position);
+            view.put(source);
+        } else {
+            int start = source.position();
+            while (source.hasRemaining()) {
+                channel.write(source, position + source.position() - start);
+            }
+        }
+
+        pageCount = Math.max(pageCount, (int) ((end + pageSize - 1) / pageSize));
+    }
+
+    // Returns a block backed directly by the mapped page, without copying it
+    public BlockOfMemory mapPage(int pageID) throws IOException {
+        if (!memoryMapped) {
+            throw new IllegalStateException("File " + getFilename() + " is not memory-mapped.");
+        }
+        ensureMapped(pageID);
+        return new BlockOfMemory(pageView(pageID), pageSize);
+    }
+
+    public void writePage(int pageID, BlockOfMemory block) throws IOException {
+        ByteBuffer source = block.getByteBuffer().duplicate();
+        source.clear().limit(pageSize);
+
+        if (memoryMapped) {
+            ensureMapped(pageID);
+            pageView(pageID).put(source);
+        } else {
+            long position = (long) pageID * pageSize;
+            while (source.hasRemaining()) {
+                channel.write(source, position + source.position());
+            }
+        }
+
+        pageCount = Math.max(pageCount, pageID + 1);
+    }
+
+    // Drops the given page and all pages after it
+    public void truncate(int pages) throws IOException {
+        if (pages >= pageCount) {
+            return;
+        }
+
+        pageCount = pages;
+        if (!memoryMapped) {
+            channel.truncate((long) pages * pageSize);
+        }
+        // A mapped file keeps its length until close, which cuts it after the last page
+    }
+
+    // Makes every page written so far durable
+    public void force() throws IOException {
+        if (memoryMapped) {
+            mapping.force();
+        } else {
+            channel.force(false);
+        }
+    }
+
+    public void close() throws IOException {
+        if (memoryMapped) {
+            mapping.force();
+            try {
+                // Mapping extends the file in large steps; drop the unused tail
+                channel.truncate((long) pageCount * pageSize);
+            } catch (IOException e) {
+                // Some platforms refuse to truncate a mapped file; the zeroed tail is harmless
+            }
+        }
+        channel.close();
+        file.close();
+    }
+
+    private ByteBuffer pageView(int pageID) {
+        ByteBuffer view = mapping.duplicate();
+        int offset = pageID * pageSize;
+        view.position(offset).limit(offset + pageSize);
+        return view.slice();
+    }
+
+    private synchronized void ensureMapped(int pageID) throws IOException {
+        if ((long) (pageID + 1) * pageSize > mapping.capacity()) {
+            remap(Math.max(pageID + 1, 2 * (mapping.capacity() / pageSize)));
+        }
+    }
+
+    private void remap(int pages) throws IOException {
+        // Views handed out from an earlier mapping stay valid and share the same file pages
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) pages * pageSize);
+    }
+}
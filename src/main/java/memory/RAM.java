@@ -2,30 +2,90 @@ package memory;
 
 import database.BTree;
 import database.BTreeNode;
+import database.IntList;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// The operation counters are atomic, since concurrent readers load nodes and records in parallel
 public class RAM {
+    // nodeID, keys, locations and children counts, previous and next leaf
+    public static final int NODE_HEADER_SIZE = 6 * Integer.BYTES;
 
-    private int readOperationsData;
-    private int writeOperationsData;
-    private int readOperationsBtree;
-    private int writeOperationsBtree;
-
-    public RAM() {
-        readOperationsData = 0;
-        writeOperationsData = 0;
-        readOperationsBtree = 0;
-        writeOperationsBtree = 0;
-    }
+    private final AtomicInteger readOperationsData = new AtomicInteger();
+    private final AtomicInteger writeOperationsData = new AtomicInteger();
+    private final AtomicInteger readOperationsBtree = new AtomicInteger();
+    private final AtomicInteger writeOperationsBtree = new AtomicInteger();
+    private final AtomicInteger readOperationsSort = new AtomicInteger();
+    private final AtomicInteger writeOperationsSort = new AtomicInteger();
 
     // DATA
     // --------------------------------------------------------------------------------------------
 
-    public BlockOfMemory loadBlockFromData(DiskFile file) {
+    // Record n of the data file is stored at byte offset n * Record.RECORD_SIZE, so block n is page n.
+    // The block is always a copy, also for a memory-mapped file, since records are changed in the
+    // cached block before its new content is logged.
+    public BlockOfMemory loadBlockFromData(PageFile file, int blockNumber) {
+        try {
+            BlockOfMemory block = new BlockOfMemory();
+            file.readPage(blockNumber, block);
+            block.setSize(BlockOfMemory.BUFFER_SIZE);
+
+            readOperationsData.incrementAndGet();
+            return block;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Write errors are passed on: a checkpoint may only end the log once every page is written
+    public void writeDataBlockToDisk(PageFile file, int blockNumber, BlockOfMemory block) throws IOException {
+        if (block == null) {
+            return;
+        }
+
+        file.writePage(blockNumber, block);
+        writeOperationsData.incrementAndGet();
+    }
+
+    // Reads one record with a positioned read; it counts as an access to every block it touches
+    public Record readRecordFromData(PageFile file, int location) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(Record.RECORD_SIZE);
+            long position = (long) location * Record.RECORD_SIZE;
+            file.read(position, buffer);
+
+            readOperationsData.addAndGet(blocksTouched(file, position));
+            return new Record(buffer.getInt(0), buffer.getInt(4), buffer.getInt(8), buffer.getInt(12));
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Record(-1, -1, -1, -1);
+        }
+    }
+
+    public void writeRecordToData(PageFile file, int location, Record record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Record.RECORD_SIZE);
+        buffer.putInt(record.getFirst()).putInt(record.getSecond()).putInt(record.getThird()).putInt(record.getKey());
+        buffer.flip();
+        long position = (long) location * Record.RECORD_SIZE;
+        file.write(position, buffer);
+
+        writeOperationsData.addAndGet(blocksTouched(file, position));
+    }
+
+    private int blocksTouched(PageFile file, long position) {
+        long first = position / file.getPageSize();
+        long last = (position + Record.RECORD_SIZE - 1) / file.getPageSize();
+        return (int) (last - first + 1);
+    }
+
+    // Text blocks as written by the data generators, one record of four numbers per line; only used to
+    // import them into the binary data file
+    public BlockOfMemory loadBlockFromTextData(DiskFile file) {
         try (BufferedReader reader = new BufferedReader(new FileReader(file.getFilename()))) {
             String line;
 
@@ -64,7 +124,7 @@ public class RAM {
             }
 
             if (bufferIndex > 0) {
-                readOperationsData++;
+                readOperationsData.incrementAndGet();
                 return new BlockOfMemory(buffer, bufferIndex);
             } else {
                 return null;
@@ -76,47 +136,11 @@ public class RAM {
     }
 
 
-    public void writeDataBlockToDisk(DiskFile file, BlockOfMemory _blockOfMemory) {
-        if (_blockOfMemory == null) {
-            return;
-        }
-
-        try {
-            DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file.getFilename()));
-            byte[] data = _blockOfMemory.getBuffer();
-            int size = _blockOfMemory.getSize();
-
-            int count = 0;
-            for (int i = 0; i < size; i += 4) {
-                if (i + 4 <= size) {
-                    int number = ((data[i] & 0xFF) << 24) |
-                            ((data[i + 1] & 0xFF) << 16) |
-                            ((data[i + 2] & 0xFF) << 8) |
-                            (data[i + 3] & 0xFF);
-                    if (number != 0) {
-                        outputStream.writeBytes(number + " ");
-                    }
-                    // After every forth integer, write a newline
-                    count++;
-                    if (count % 4 == 0) {
-                        outputStream.writeBytes("\n");
-                    }
-                }
-            }
-
-            writeOperationsData++;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     public Record readRecordFromBlock(BlockOfMemory blockOfMemory) {
         if (blockOfMemory == null) {
             return new Record(-1, -1, -1, -1);
         }
 
-        byte[] data = blockOfMemory.getBuffer();
         int size = blockOfMemory.getSize();
         int index = blockOfMemory.getIndex();
         int recordSize = Record.RECORD_SIZE;
@@ -131,10 +155,7 @@ public class RAM {
         for (int i = index; i < index + recordSize; i += 4) {
 
             if (i + 4 <= size) {
-                int number = ((data[i] & 0xFF) << 24) |
-                        ((data[i + 1] & 0xFF) << 16) |
-                        ((data[i + 2] & 0xFF) << 8) |
-                        (data[i + 3] & 0xFF);
+                int number = blockOfMemory.getInt(i);
                 record_values[values_index] = number;
                 values_index++;
             }
@@ -152,7 +173,6 @@ public class RAM {
             return;
         }
 
-        byte[] data = blockOfMemory.getBuffer();
         int size = blockOfMemory.getSize();
         int recordSize = Record.RECORD_SIZE;
 
@@ -164,11 +184,7 @@ public class RAM {
         int values_index = 0;
 
         for (int i = size; i < size + recordSize; i += 4) {
-            int number = record_values[values_index];
-            data[i] = (byte) (number >> 24);
-            data[i + 1] = (byte) (number >> 16);
-            data[i + 2] = (byte) (number >> 8);
-            data[i + 3] = (byte) number;
+            blockOfMemory.putInt(i, record_values[values_index]);
             values_index++;
         }
 
@@ -176,20 +192,31 @@ public class RAM {
 
     }
 
+    // Writes the record over the slot at the index, which may lie past the current end of the block
+    public void writeRecordToBlock(BlockOfMemory blockOfMemory, Record record, int index) {
+        if (blockOfMemory == null || index < 0 || (index + Record.RECORD_SIZE) > BlockOfMemory.BUFFER_SIZE) {
+            return;
+        }
+
+        int size = blockOfMemory.getSize();
+        blockOfMemory.setSize(index);
+        writeRecordToBlock(blockOfMemory, record);
+        blockOfMemory.setSize(Math.max(size, index + Record.RECORD_SIZE));
+    }
+
     public void deleteRecordFromBlock(int index, BlockOfMemory blockOfMemory) {
         if (blockOfMemory == null) {
             return;
         }
 
-        byte[] data = blockOfMemory.getBuffer();
         int recordSize = Record.RECORD_SIZE;
 
         if (index < 0 || (index + recordSize) > BlockOfMemory.BUFFER_SIZE) {
             return;
         }
 
-        for (int i = index; i < index + recordSize; i++) {
-            data[i] = 0;
+        for (int i = index; i < index + recordSize; i += 4) {
+            blockOfMemory.putInt(i, 0);
         }
 
     }
@@ -197,39 +224,19 @@ public class RAM {
     // BTREE
     // --------------------------------------------------------------------------------------------
 
-    public BlockOfMemory loadBlockFromBTree(DiskFile file) {
-        String filename = file.getFilename();
-
-        try (Scanner scanner = new Scanner(new File(filename))) {
-            byte[] buffer = new byte[BlockOfMemory.BUFFER_SIZE];
-            int bufferIndex = 0;
-
-            while (scanner.hasNext()) {
-                String token = scanner.next();
-
-                if (token.endsWith("=") || token.endsWith("[") || token.equals("]")) {
-                    continue;
-                }
-
-                try {
-                    int number = Integer.parseInt(token);
-
-                    buffer[bufferIndex] = (byte) (number >> 24);
-                    buffer[bufferIndex + 1] = (byte) (number >> 16);
-                    buffer[bufferIndex + 2] = (byte) (number >> 8);
-                    buffer[bufferIndex + 3] = (byte) number;
-                    bufferIndex += 4;
-
-                    if (bufferIndex >= BlockOfMemory.BUFFER_SIZE) {
-                        break;
-                    }
-                } catch (NumberFormatException e) {
-                    e.printStackTrace();
-                }
+    public BlockOfMemory loadPageFromBTree(PageFile file, int pageID) {
+        try {
+            BlockOfMemory block;
+            if (file.isMemoryMapped()) {
+                block = file.mapPage(pageID);
+            } else {
+                block = new BlockOfMemory();
+                file.readPage(pageID, block);
+                block.setSize(BlockOfMemory.BUFFER_SIZE);
             }
 
-            readOperationsBtree++;
-            return new BlockOfMemory(buffer, bufferIndex);
+            readOperationsBtree.incrementAndGet();
+            return block;
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -237,49 +244,13 @@ public class RAM {
         }
     }
 
-    public void writeBtreeBlockToDisk(DiskFile file, BlockOfMemory block) {
+    public void writeBtreePageToDisk(PageFile file, int pageID, BlockOfMemory block) throws IOException {
         if (block == null) {
             return;
         }
 
-        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file.getFilename()))) {
-            StringBuilder sb = new StringBuilder();
-            block.setIndex(0);
-
-            int nodeID = readIntFromBuffer(block);
-            sb.append("nodeID= ").append(nodeID).append(" ");
-            int parentID = readIntFromBuffer(block);
-            sb.append("parentID= ").append(parentID).append(" ");
-            int keysSize = readIntFromBuffer(block);
-            sb.append("keysSize= ").append(keysSize).append(" ");
-            int childrenSize = readIntFromBuffer(block);
-            sb.append("childrenSize= ").append(childrenSize).append(" ");
-
-            sb.append("keys=[ ");
-            for (int i = 0; i < keysSize; i++) {
-                int key = readIntFromBuffer(block);
-                sb.append(key).append(" ");
-            }
-
-            sb.append("] locations=[ ");
-            for (int i = 0; i < keysSize; i++) {
-                int location = readIntFromBuffer(block);
-                sb.append(location).append(" ");
-            }
-
-            sb.append("] children=[ ");
-            for (int i = 0; i < childrenSize; i++) {
-                int child = readIntFromBuffer(block);
-                sb.append(child).append(" ");
-            }
-            sb.append("]");
-
-            outputStream.writeBytes(sb.toString());
-            writeOperationsBtree++;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        file.writePage(pageID, block);
+        writeOperationsBtree.incrementAndGet();
     }
 
     public BTreeNode readNodeFromBlock(BlockOfMemory block, BTree tree) {
@@ -290,26 +261,33 @@ public class RAM {
         block.setIndex(0);
 
         int nodeID = readIntFromBuffer(block);
-        int parentID = readIntFromBuffer(block);
         int keysSize = readIntFromBuffer(block);
+        int locationsSize = readIntFromBuffer(block);
         int childrenSize = readIntFromBuffer(block);
+        int prevLeafID = readIntFromBuffer(block);
+        int nextLeafID = readIntFromBuffer(block);
 
-        List<Integer> keys = new ArrayList<>();
+        // Sized for a full node so that later inserts do not have to grow the arrays
+        int capacity = 2 * tree.getD() + 1;
+        IntList keys = new IntList(Math.max(keysSize, capacity));
         for (int i = 0; i < keysSize; i++) {
             keys.add(readIntFromBuffer(block));
         }
 
-        List<Integer> locations = new ArrayList<>();
-        for (int i = 0; i < keysSize; i++) {
+        IntList locations = new IntList(Math.max(locationsSize, capacity));
+        for (int i = 0; i < locationsSize; i++) {
             locations.add(readIntFromBuffer(block));
         }
 
-        List<Integer> children = new ArrayList<>();
+        IntList children = new IntList(Math.max(childrenSize, capacity + 1));
         for (int i = 0; i < childrenSize; i++) {
             children.add(readIntFromBuffer(block));
         }
 
-        return new BTreeNode(tree, nodeID, parentID, keys, locations, children);
+        BTreeNode node = new BTreeNode(tree, nodeID, keys, locations, children);
+        node.setPrevLeafID(prevLeafID);
+        node.setNextLeafID(nextLeafID);
+        return node;
     }
 
     public void writeNodeToBlock(BlockOfMemory block, BTreeNode node) {
@@ -318,64 +296,104 @@ public class RAM {
         }
 
         writeIntToBuffer(block, node.getNodeID());
-        writeIntToBuffer(block, node.getParentID());
         writeIntToBuffer(block, node.getKeys().size());
+        writeIntToBuffer(block, node.getLocations().size());
         writeIntToBuffer(block, node.getChildrenIDs().size());
+        writeIntToBuffer(block, node.getPrevLeafID());
+        writeIntToBuffer(block, node.getNextLeafID());
 
-        for (int key : node.getKeys()) {
-            writeIntToBuffer(block, key);
+        IntList keys = node.getKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            writeIntToBuffer(block, keys.get(i));
         }
 
-        for (int location : node.getLocations()) {
-            writeIntToBuffer(block, location);
+        IntList locations = node.getLocations();
+        for (int i = 0; i < locations.size(); i++) {
+            writeIntToBuffer(block, locations.get(i));
         }
 
-        for (int childID : node.getChildrenIDs()) {
-            writeIntToBuffer(block, childID);
+        IntList childIDs = node.getChildrenIDs();
+        for (int i = 0; i < childIDs.size(); i++) {
+            writeIntToBuffer(block, childIDs.get(i));
+        }
+    }
+
+    // SORT RUNS
+    // --------------------------------------------------------------------------------------------
+
+    public BlockOfMemory loadBlockFromRun(PageFile file, int blockNumber) {
+        try {
+            BlockOfMemory block = new BlockOfMemory();
+            file.readPage(blockNumber, block);
+            block.setSize(BlockOfMemory.BUFFER_SIZE);
+
+            readOperationsSort.incrementAndGet();
+            return block;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void writeRunBlockToDisk(PageFile file, int blockNumber, BlockOfMemory block) {
+        if (block == null) {
+            return;
+        }
+
+        try {
+            file.writePage(blockNumber, block);
+            writeOperationsSort.incrementAndGet();
+
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     private int readIntFromBuffer(BlockOfMemory block) {
-        byte[] buffer = block.getBuffer();
         int offset = block.getIndex();
         block.setIndex(offset + 4);
 
-        return ((buffer[offset] & 0xFF) << 24) |
-                ((buffer[offset + 1] & 0xFF) << 16) |
-                ((buffer[offset + 2] & 0xFF) << 8) |
-                (buffer[offset + 3] & 0xFF);
+        return block.getInt(offset);
     }
 
     private void writeIntToBuffer(BlockOfMemory block, int value) {
         int offset = block.getSize();
-        block.getBuffer()[offset] = (byte) (value >> 24);
-        block.getBuffer()[offset + 1] = (byte) (value >> 16);
-        block.getBuffer()[offset + 2] = (byte) (value >> 8);
-        block.getBuffer()[offset + 3] = (byte) value;
+        block.putInt(offset, value);
         block.setSize(offset + 4);
     }
 
     public int getReadOperationsData() {
-        return readOperationsData;
+        return readOperationsData.get();
     }
 
     public int getWriteOperationsData() {
-        return writeOperationsData;
+        return writeOperationsData.get();
     }
 
     public int getReadOperationsBTree() {
-        return readOperationsBtree;
+        return readOperationsBtree.get();
     }
 
     public int getWriteOperationsBTree() {
-        return writeOperationsBtree;
+        return writeOperationsBtree.get();
+    }
+
+    public int getReadOperationsSort() {
+        return readOperationsSort.get();
+    }
+
+    public int getWriteOperationsSort() {
+        return writeOperationsSort.get();
     }
 
     public void resetStats() {
-        readOperationsData = 0;
-        writeOperationsData = 0;
-        readOperationsBtree = 0;
-        writeOperationsBtree = 0;
+        readOperationsData.set(0);
+        writeOperationsData.set(0);
+        readOperationsBtree.set(0);
+        writeOperationsBtree.set(0);
+        readOperationsSort.set(0);
+        writeOperationsSort.set(0);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,416 @@
+package memory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Redo log of physical page images, or of single data records where only one record changed. The
+// images changed by one command are appended first and followed by a commit record; a command is
+// durable once the log is synced past its commit record.
+// Every record is framed as [length][type][payload][CRC32 of type and payload], so a torn tail
+// can be recognised when the log is read back.
+//
+// A committer waits for the sync in awaitSync, after it has released its locks. The first one to wait
+// forces the log for every commit appended so far, and the commits appended during that force share the
+// next one. With a group commit window, the forcing committer first waits up to the window for a command
+// that is still being logged, so its commit can share the force as well.
+public class WriteAheadLog {
+    public static final int TARGET_INDEX = 0;
+    public static final int TARGET_DATA = 1;
+
+    private static final int PAGE_RECORD = 1;
+    private static final int COMMIT_RECORD = 2;
+    private static final int CHECKPOINT_RECORD = 3;
+    private static final int FREE_PAGE_RECORD = 4;
+    private static final int DATA_RECORD = 5;
+
+    // Receives the effects of committed commands while the log is replayed
+    public interface Redo {
+        void page(int target, int pageID, BlockOfMemory image) throws IOException;
+
+        void record(int location, Record record) throws IOException;
+
+        void freePageChange(int change, int nextHead);
+
+        void metadata(int[] metadata);
+    }
+
+    // A logged change that is applied once the commit record of its command has been read
+    private interface Change {
+        void apply(Redo redo) throws IOException;
+    }
+
+    private static class PageImage implements Change {
+        private final int target;
+        private final int pageID;
+        private final BlockOfMemory image;
+
+        private PageImage(int target, int pageID, BlockOfMemory image) {
+            this.target = target;
+            this.pageID = pageID;
+            this.image = image;
+        }
+
+        @Override
+        public void apply(Redo redo) throws IOException {
+            redo.page(target, pageID, image);
+        }
+    }
+
+    private static class DataRecord implements Change {
+        private final int location;
+        private final Record record;
+
+        private DataRecord(int location, Record record) {
+            this.location = location;
+            this.record = record;
+        }
+
+        @Override
+        public void apply(Redo redo) throws IOException {
+            redo.record(location, record);
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long groupCommitWindowMillis;
+    private long size;
+    private long syncedSize;
+    private long lastCommitEnd;
+    private long committed = 0; // Commit records appended since the log was opened
+    private long durableCommits = 0;
+    private boolean forcing = false;
+    private int checkpointSequence = -1; // Superblock sequence named by the checkpoint the log was read from
+    private int appendedBytes = 0;
+    private int commits = 0;
+    private int syncs = 0;
+
+    public WriteAheadLog(String filename, long groupCommitWindowMillis) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        this.groupCommitWindowMillis = groupCommitWindowMillis;
+        this.size = channel.size();
+        this.syncedSize = size;
+        this.lastCommitEnd = size;
+    }
+
+    // Logs the first block.getSize() bytes of a page as its new content
+    public synchronized void logPage(int target, int pageID, BlockOfMemory block) throws IOException {
+        int length = block.getSize();
+        ByteBuffer record = startRecord(PAGE_RECORD, 12 + length);
+        record.putInt(target);
+        record.putInt(pageID);
+        record.putInt(length);
+
+        ByteBuffer image = block.getByteBuffer().duplicate();
+        image.clear().limit(length);
+        record.put(image);
+        append(record);
+    }
+
+    // Logs the new content of a single data record, instead of the whole block around it
+    public synchronized void logRecord(int location, Record record) throws IOException {
+        ByteBuffer entry = startRecord(DATA_RECORD, 4 + Record.RECORD_SIZE);
+        entry.putInt(location);
+        entry.putInt(record.getFirst());
+        entry.putInt(record.getSecond());
+        entry.putInt(record.getThird());
+        entry.putInt(record.getKey());
+        append(entry);
+    }
+
+    // Logs a change of the free page list; the values are interpreted by the caller
+    public synchronized void logFreePageChange(int change, int nextHead) throws IOException {
+        ByteBuffer record = startRecord(FREE_PAGE_RECORD, 8);
+        record.putInt(change);
+        record.putInt(nextHead);
+        append(record);
+    }
+
+    // Ends the current command; the metadata lets recovery restore the in-memory counters. Returns the
+    // number of the commit, which is durable once awaitSync returns for it.
+    public synchronized long commit(int... metadata) throws IOException {
+        ByteBuffer record = startRecord(COMMIT_RECORD, 4 + 4 * metadata.length);
+        record.putInt(metadata.length);
+        for (int value : metadata) {
+            record.putInt(value);
+        }
+        append(record);
+        commits++;
+        committed++;
+        lastCommitEnd = size;
+
+        if (groupCommitWindowMillis <= 0) {
+            sync();
+        } else {
+            notifyAll(); // A committer waiting in the window can force the log now
+        }
+        return committed;
+    }
+
+    // Forces everything appended so far; pages may only be written in place after their images are synced
+    public synchronized void sync() throws IOException {
+        if (syncedSize < size) {
+            channel.force(false);
+            syncedSize = size;
+            syncs++;
+        }
+        durableCommits = committed;
+        notifyAll();
+    }
+
+    // Returns once the commit is on disk. The log is forced outside the monitor, so other commands can
+    // be logged meanwhile; their committers wait for the force after it.
+    public void awaitSync(long commit) throws IOException {
+        long end;
+        long forcedCommits;
+        boolean interrupted = false;
+        synchronized (this) {
+            while (forcing && durableCommits < commit) {
+                interrupted |= waitUninterruptibly(0);
+            }
+            if (durableCommits >= commit) {
+                restoreInterrupt(interrupted);
+                return;
+            }
+
+            forcing = true;
+            long deadline = System.currentTimeMillis() + groupCommitWindowMillis;
+            long remaining;
+            while (size > lastCommitEnd && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                interrupted |= waitUninterruptibly(remaining);
+            }
+            end = size;
+            forcedCommits = committed;
+            restoreInterrupt(interrupted);
+        }
+
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                if (forced) {
+                    syncedSize = Math.max(syncedSize, end);
+                    durableCommits = Math.max(durableCommits, forcedCommits);
+                    syncs++;
+                }
+                notifyAll(); // On failure the next waiter forces the log itself and sees the error too
+            }
+        }
+    }
+
+    // Waits on the monitor and returns true if the thread was interrupted; the caller keeps waiting
+    // and restores the interrupt when it is done
+    private boolean waitUninterruptibly(long millis) {
+        try {
+            wait(millis);
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static void restoreInterrupt(boolean interrupted) {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called once every dirty page has been written in place: the log restarts with a record
+    // naming the checkpoint, and only commands after it will be replayed
+    public synchronized void checkpoint(int sequence) throws IOException {
+        boolean interrupted = false;
+        while (forcing) {
+            interrupted |= waitUninterruptibly(0);
+        }
+        restoreInterrupt(interrupted);
+
+        channel.truncate(0);
+        size = 0;
+        syncedSize = 0;
+        ByteBuffer record = startRecord(CHECKPOINT_RECORD, 4);
+        record.putInt(sequence);
+        append(record);
+        lastCommitEnd = size;
+        sync();
+    }
+
+    // Reads the log from the checkpoint record at its start and hands every committed command to redo,
+    // in log order. Reading stops at the first incomplete or corrupt record; everything after the
+    // last commit is cut off, so new records follow the replayed ones. Returns the number of
+    // replayed commands, or -1 if the log does not start with a checkpoint.
+    //
+    // A checkpoint writes its superblock before it restarts the log. If the log's checkpoint is older
+    // than the superblock that was opened, a crash came in between: the pages already hold every
+    // command in the log, and replaying them again would apply them twice, so the log is dropped.
+    public synchronized int replay(int superblockSequence, Redo redo) throws IOException {
+        List<Change> pending = new ArrayList<>();
+        List<Integer> pendingFreePageChanges = new ArrayList<>();
+        long position = 0;
+        long committedSize = 0;
+        int replayed = 0;
+        boolean checkpointFound = false;
+
+        ByteBuffer record;
+        while ((record = readRecord(position)) != null) {
+            int type = record.getInt();
+            position += 4 + record.capacity() + 4;
+
+            if (type == CHECKPOINT_RECORD && !checkpointFound && committedSize == 0) {
+                checkpointFound = true;
+                committedSize = position;
+                checkpointSequence = record.getInt();
+                if (checkpointSequence < superblockSequence) {
+                    break;
+                }
+            } else if (!checkpointFound) {
+                break;
+            } else if (type == PAGE_RECORD) {
+                int target = record.getInt();
+                int pageID = record.getInt();
+                int length = record.getInt();
+
+                ByteBuffer source = record.duplicate();
+                source.limit(source.position() + length);
+                BlockOfMemory image = new BlockOfMemory();
+                image.getByteBuffer().duplicate().clear().put(source);
+                image.setSize(length);
+                pending.add(new PageImage(target, pageID, image));
+            } else if (type == DATA_RECORD) {
+                int location = record.getInt();
+                pending.add(new DataRecord(location,
+                        new Record(record.getInt(), record.getInt(), record.getInt(), record.getInt())));
+            } else if (type == FREE_PAGE_RECORD) {
+                pendingFreePageChanges.add(record.getInt());
+                pendingFreePageChanges.add(record.getInt());
+            } else if (type == COMMIT_RECORD) {
+                for (Change change : pending) {
+                    change.apply(redo);
+                }
+                for (int i = 0; i < pendingFreePageChanges.size(); i += 2) {
+                    redo.freePageChange(pendingFreePageChanges.get(i), pendingFreePageChanges.get(i + 1));
+                }
+                pending.clear();
+                pendingFreePageChanges.clear();
+
+                int[] metadata = new int[record.getInt()];
+                for (int i = 0; i < metadata.length; i++) {
+                    metadata[i] = record.getInt();
+                }
+                redo.metadata(metadata);
+                committedSize = position;
+                replayed++;
+            } else {
+                break;
+            }
+        }
+
+        if (!checkpointFound) {
+            return -1;
+        }
+
+        channel.truncate(committedSize);
+        size = committedSize;
+        syncedSize = committedSize;
+        lastCommitEnd = committedSize;
+        return replayed;
+    }
+
+    // Returns the type and payload of the record at the position, or null if it is torn or corrupt
+    private ByteBuffer readRecord(long position) throws IOException {
+        if (position + 4 > size) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, position);
+        int length = header.getInt(0);
+        if (length < 4 || position + 4 + length + 4 > size) {
+            return null;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length + 4);
+        readFully(body, position + 4);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        if (body.getInt(length) != (int) crc.getValue()) {
+            return null;
+        }
+
+        return ByteBuffer.wrap(body.array(), 0, length).slice();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of log.");
+            }
+        }
+    }
+
+    public synchronized int getCheckpointSequence() {
+        return checkpointSequence;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void close() throws IOException {
+        boolean interrupted = false;
+        while (forcing) {
+            interrupted |= waitUninterruptibly(0);
+        }
+        restoreInterrupt(interrupted);
+        sync();
+        channel.close();
+        file.close();
+    }
+
+    public synchronized int getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    public synchronized int getCommits() {
+        return commits;
+    }
+
+    public synchronized int getSyncs() {
+        return syncs;
+    }
+
+    public synchronized void resetStats() {
+        appendedBytes = 0;
+        commits = 0;
+        syncs = 0;
+    }
+
+    private ByteBuffer startRecord(int type, int payloadLength) {
+        ByteBuffer record = ByteBuffer.allocate(4 + 4 + payloadLength + 4);
+        record.putInt(4 + payloadLength);
+        record.putInt(type);
+        return record;
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            channel.write(record, size + record.position());
+        }
+        size += length;
+        appendedBytes += length;
+    }
+}
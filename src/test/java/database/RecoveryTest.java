@@ -0,0 +1,82 @@
+package database;
+
+import memory.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Recovery after a crash inside checkpoint(), between writeSuperblock() and log.checkpoint(): the new
+// superblock is on disk while the log still holds the commands it already contains. The crash is
+// reproduced by saving the synced log before a clean close and putting it back afterwards, since
+// close() runs the same checkpoint. Run with: java database.RecoveryTest [directory]
+public class RecoveryTest {
+    private static final int KEYS = 200;
+    private static final int DELETED = 150;
+    private static final int REINSERTED = 300;
+
+    public static void main(String[] args) throws IOException {
+        File root = Files.createTempDirectory(args.length > 0 ? new File(args[0]).toPath() : null, "recovery").toFile();
+        String dataDirectory = new File(root, "data").getPath();
+        String BTreeDirectory = new File(root, "btree").getPath();
+        new File(dataDirectory).mkdirs();
+        new File(BTreeDirectory).mkdirs();
+        Path logFile = new File(BTreeDirectory + "\\wal.log").toPath();
+        Path savedLog = new File(root, "wal.saved").toPath();
+
+        DatabaseManager database = open(dataDirectory, BTreeDirectory);
+        for (int key = 1; key <= KEYS; key++) {
+            database.insert(record(key));
+        }
+        database.close();
+
+        database = open(dataDirectory, BTreeDirectory);
+        for (int key = 1; key <= DELETED; key++) {
+            database.delete(key);
+        }
+        Files.copy(logFile, savedLog, StandardCopyOption.REPLACE_EXISTING);
+        database.close();
+        Files.copy(savedLog, logFile, StandardCopyOption.REPLACE_EXISTING);
+
+        // Reopening must not replay the saved commands on top of the newer superblock; new nodes then
+        // take their pages from the free list, which must not hand out a page twice
+        database = open(dataDirectory, BTreeDirectory);
+        check(database, KEYS);
+        for (int key = KEYS + 1; key <= KEYS + REINSERTED; key++) {
+            database.insert(record(key));
+        }
+        check(database, KEYS + REINSERTED);
+        database.close();
+
+        database = open(dataDirectory, BTreeDirectory);
+        check(database, KEYS + REINSERTED);
+        database.close();
+        System.out.println("RecoveryTest passed.");
+    }
+
+    private static DatabaseManager open(String dataDirectory, String BTreeDirectory) throws IOException {
+        DatabaseConfig config = new DatabaseConfig();
+        config.setOrder(2);
+        config.setCheckpointLogBlocks(Integer.MAX_VALUE); // Only close() checkpoints
+        return new DatabaseManager(dataDirectory, BTreeDirectory, config);
+    }
+
+    private static Record record(int key) {
+        return new Record(key, key + 1, key + 2, key);
+    }
+
+    private static void check(DatabaseManager database, int lastKey) {
+        for (int key = 1; key <= lastKey; key++) {
+            Record found = database.find(key);
+            if (key <= DELETED) {
+                if (found != null) {
+                    throw new AssertionError("Deleted key " + key + " is back after recovery.");
+                }
+            } else if (found == null || found.getKey() != key || found.getFirst() != key) {
+                throw new AssertionError("Key " + key + " reads as " + found + " after recovery.");
+            }
+        }
+    }
+}